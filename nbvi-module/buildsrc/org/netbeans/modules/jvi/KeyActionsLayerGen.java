@@ -0,0 +1,106 @@
+/*
+ * The contents of this file are subject to the Mozilla Public
+ * License Version 1.1 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of
+ * the License at http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS
+ * IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * rights and limitations under the License.
+ *
+ * The Original Code is jvi - vi editor clone.
+ *
+ * The Initial Developer of the Original Code is Ernie Rael.
+ * Portions created by Ernie Rael are
+ * Copyright (C) 2011 Ernie Rael.  All Rights Reserved.
+ *
+ * Contributor(s): Ernie Rael <err@raelity.com>
+ */
+
+package org.netbeans.modules.jvi;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+
+import javax.swing.Action;
+
+import org.netbeans.modules.jvi.impl.NbFactory;
+
+import com.raelity.jvi.manager.ViManager;
+import com.raelity.jvi.swing.KeyBinding;
+
+/**
+ * Run by the build, see build.xml, to write the layer of
+ * jVi's Editors/Actions that KeyActionsFS uses.
+ * This is only used by the build, it is not in the module.
+ * Each action's file has the action's name, its instanceClass
+ * and an instanceCreate of KeyActionsFS.createAction; so nothing
+ * is created until the action is looked up.
+ *
+ * @author Ernie Rael <err at raelity.com>
+ */
+public final class KeyActionsLayerGen
+{
+    private KeyActionsLayerGen() { }
+
+    private static String xmlAttr(String s)
+    {
+        return s.replace("&", "&amp;").replace("<", "&lt;")
+                .replace("\"", "&quot;");
+    }
+
+    /** @param args the file to write */
+    public static void main(String[] args) throws IOException
+    {
+        if(args.length != 1) {
+            System.err.println("usage: KeyActionsLayerGen layer-file");
+            System.exit(1);
+        }
+        ViManager.runInDispatch(true, new Runnable() {
+            @Override
+            public void run() {
+                ViManager.setViFactory(new NbFactory());
+            }
+        });
+
+        File f = new File(args[0]);
+        f.getParentFile().mkdirs();
+        PrintWriter w = new PrintWriter(new OutputStreamWriter(
+                new FileOutputStream(f), "UTF-8"));
+        try {
+            w.println("<?xml version=\"1.0\" encoding=\"UTF-8\"?>");
+            w.println("<!DOCTYPE filesystem PUBLIC"
+                    + " \"-//NetBeans//DTD Filesystem 1.2//EN\""
+                    + " \"http://www.netbeans.org/dtds/filesystem-1_2.dtd\">");
+            w.println("<!-- GENERATED by KeyActionsLayerGen - DO NOT EDIT -->");
+            w.println("<filesystem>");
+            w.println("    <folder name=\"Editors\">");
+            w.println("        <folder name=\"Actions\">");
+            for(Action action : KeyBinding.getActionsList()) {
+                String name = (String)action.getValue(Action.NAME);
+                w.println("            <file name=\""
+                        + xmlAttr(name) + ".instance\">");
+                w.println("                <attr name=\"instanceCreate\""
+                        + " methodvalue=\""
+                        + KeyActionsFS.class.getName() + ".createAction\"/>");
+                // instanceClass, not instanceOf, see KeyActionsFS
+                w.println("                <attr name=\"instanceClass\""
+                        + " stringvalue=\""
+                        + xmlAttr(action.getClass().getName()) + "\"/>");
+                w.println("            </file>");
+            }
+            w.println("        </folder>");
+            w.println("    </folder>");
+            w.println("</filesystem>");
+        } finally {
+            w.close();
+        }
+        if(w.checkError())
+            throw new IOException("error writing " + f);
+        System.exit(0);
+    }
+}
@@ -0,0 +1,205 @@
+/*
+ * The contents of this file are subject to the Mozilla Public
+ * License Version 1.1 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of
+ * the License at http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS
+ * IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * rights and limitations under the License.
+ *
+ * The Original Code is jvi - vi editor clone.
+ *
+ * The Initial Developer of the Original Code is Ernie Rael.
+ * Portions created by Ernie Rael are
+ * Copyright (C) 2011 Ernie Rael.  All Rights Reserved.
+ *
+ * Contributor(s): Ernie Rael <err@raelity.com>
+ */
+
+package org.netbeans.modules.jvi;
+
+import java.awt.Component;
+import java.awt.EventQueue;
+import java.awt.event.HierarchyEvent;
+import java.awt.event.HierarchyListener;
+import java.lang.ref.Reference;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import javax.swing.JEditorPane;
+
+import org.netbeans.modules.jvi.reflect.NbWindows;
+import org.openide.windows.TopComponent;
+
+import com.raelity.jvi.ViCaret;
+
+/**
+ * Tracks which editor panes are in which TopComponent, so that finding
+ * the editors of a TopComponent doesn't walk the component hierarchy.
+ * The known editors, see KeyBindings, are added; each has a
+ * HierarchyListener and when it, or one of its ancestors, gets a new
+ * parent the TopComponents it is in are figured out again.
+ * The editor's mode panel is cached the same way.
+ * <p/>
+ * Nothing here holds on to an editor or a TopComponent.
+ * Only used from the event thread.
+ *
+ * @author Ernie Rael <err at raelity.com>
+ */
+public final class EditorPaneIndex
+{
+    private EditorPaneIndex() { }
+
+    private static class PaneInfo {
+        /** the TopComponents containing the editor, innermost first */
+        List<Reference<TopComponent>> tcs = Collections.emptyList();
+        Reference<Component> modePanel;
+        boolean modePanelValid;
+    }
+
+    private static final Map<JEditorPane, PaneInfo> panes
+            = new WeakHashMap<JEditorPane, PaneInfo>();
+    /** editors of a TopComponent, in the order they showed up */
+    private static final Map<TopComponent, List<Reference<JEditorPane>>> tcPanes
+            = new WeakHashMap<TopComponent, List<Reference<JEditorPane>>>();
+
+    private static final HierarchyListener hl = new HierarchyListener() {
+        @Override
+        public void hierarchyChanged(HierarchyEvent e)
+        {
+            if((e.getChangeFlags() & HierarchyEvent.PARENT_CHANGED) != 0)
+                update((JEditorPane)e.getComponent());
+        }
+    };
+
+    static void add(JEditorPane ep)
+    {
+        assert EventQueue.isDispatchThread();
+        if(panes.containsKey(ep))
+            return;
+        panes.put(ep, new PaneInfo());
+        ep.addHierarchyListener(hl);
+        update(ep);
+    }
+
+    static void remove(JEditorPane ep)
+    {
+        assert EventQueue.isDispatchThread();
+        PaneInfo info = panes.remove(ep);
+        if(info == null)
+            return;
+        ep.removeHierarchyListener(hl);
+        removeFromTCs(ep, info);
+    }
+
+    private static void removeFromTCs(JEditorPane ep, PaneInfo info)
+    {
+        for(Reference<TopComponent> ref : info.tcs) {
+            TopComponent tc = ref.get();
+            List<Reference<JEditorPane>> l = tc == null ? null : tcPanes.get(tc);
+            if(l == null)
+                continue;
+            for(Iterator<Reference<JEditorPane>> it = l.iterator(); it.hasNext();) {
+                JEditorPane ep01 = it.next().get();
+                if(ep01 == null || ep01 == ep)
+                    it.remove();
+            }
+            if(l.isEmpty())
+                tcPanes.remove(tc);
+        }
+        info.tcs = Collections.emptyList();
+    }
+
+    private static void update(JEditorPane ep)
+    {
+        PaneInfo info = panes.get(ep);
+        if(info == null)
+            return;
+        removeFromTCs(ep, info);
+        info.modePanel = null;
+        info.modePanelValid = false;
+
+        List<Reference<TopComponent>> tcs
+                = new ArrayList<Reference<TopComponent>>(2);
+        for(Component c = ep.getParent(); c != null; c = c.getParent()) {
+            if(!(c instanceof TopComponent))
+                continue;
+            TopComponent tc = (TopComponent)c;
+            tcs.add(new WeakReference<TopComponent>(tc));
+            List<Reference<JEditorPane>> l = tcPanes.get(tc);
+            if(l == null) {
+                l = new ArrayList<Reference<JEditorPane>>(2);
+                tcPanes.put(tc, l);
+            }
+            l.add(new WeakReference<JEditorPane>(ep));
+        }
+        if(!tcs.isEmpty())
+            info.tcs = tcs;
+    }
+
+    /**
+     * The editors contained in tc, including those in
+     * nested TopComponents.
+     * @param jviOnly only the editors that have jVi installed
+     */
+    public static List<JEditorPane> getPanes(TopComponent tc, boolean jviOnly)
+    {
+        assert EventQueue.isDispatchThread();
+        List<Reference<JEditorPane>> l = tcPanes.get(tc);
+        if(l == null)
+            return new ArrayList<JEditorPane>(0);
+        List<JEditorPane> result = new ArrayList<JEditorPane>(l.size());
+        for(Reference<JEditorPane> ref : l) {
+            JEditorPane ep = ref.get();
+            if(ep == null)
+                continue;
+            if(jviOnly && !(ep.getCaret() instanceof ViCaret))
+                continue;
+            result.add(ep);
+        }
+        return result;
+    }
+
+    /**
+     * @return the top components containing ep, innermost first;
+     *         null if ep isn't indexed
+     */
+    public static List<TopComponent> getTopComponents(JEditorPane ep)
+    {
+        assert EventQueue.isDispatchThread();
+        PaneInfo info = panes.get(ep);
+        if(info == null)
+            return null;
+        List<TopComponent> result = new ArrayList<TopComponent>(info.tcs.size());
+        for(Reference<TopComponent> ref : info.tcs) {
+            TopComponent tc = ref.get();
+            if(tc != null)
+                result.add(tc);
+        }
+        return result;
+    }
+
+    /**
+     * @return the mode panel containing c, or null
+     */
+    public static Component findModePanel(Component c)
+    {
+        PaneInfo info = c instanceof JEditorPane
+                ? panes.get((JEditorPane)c) : null;
+        if(info == null)
+            return NbWindows.findModePanel(c);
+        if(!info.modePanelValid) {
+            Component mp = NbWindows.findModePanel(c);
+            info.modePanel = mp == null ? null : new WeakReference<Component>(mp);
+            info.modePanelValid = true;
+        }
+        return info.modePanel == null ? null : info.modePanel.get();
+    }
+}
@@ -21,6 +21,9 @@
 package org.netbeans.modules.jvi;
 
 import java.io.IOException;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -30,15 +33,22 @@ import org.openide.filesystems.FileObject;
 import org.openide.filesystems.FileSystem;
 import org.openide.filesystems.FileUtil;
 import org.openide.filesystems.MultiFileSystem;
+import org.openide.filesystems.XMLFileSystem;
 import org.openide.loaders.DataFolder;
 import org.openide.util.lookup.ServiceProvider;
 
+import org.xml.sax.SAXException;
+
+import com.raelity.jvi.manager.ViManager;
 import com.raelity.jvi.swing.KeyBinding;
 
 /**
  * All the keystrokes that jVi might receive
  * must be registered in Editors/Actions.
- * Do it here programmatically.
+ * The build generates a layer for them, see buildsrc/KeyActionsLayerGen,
+ * and it is used as is; an action is created when it is first looked up.
+ * Without the generated layer, the actions
+ * are added programmatically when the module starts.
  *
  * @author Ernie Rael <err at raelity.com>
  */
@@ -46,6 +56,11 @@ import com.raelity.jvi.swing.KeyBinding;
 public class KeyActionsFS extends MultiFileSystem
 {
     private static final String MY_ROOT = "Editors/Actions";
+    /** produced by the build, see KeyActionsLayerGen */
+    static final String GENERATED_LAYER = "key-actions-layer.xml";
+
+    /** set once, on the EDT */
+    private static volatile Map<String, Action> actions;
 
     private static KeyActionsFS INSTANCE;
 
@@ -55,6 +70,54 @@ public class KeyActionsFS extends MultiFileSystem
         assert INSTANCE == null;
         INSTANCE = this;
         // setPropagateMasks(true); // in case you want to use *_hidden masks
+        URL url = KeyActionsFS.class.getResource(GENERATED_LAYER);
+        if(url != null) {
+            try {
+                setDelegates(new XMLFileSystem(url));
+            } catch(SAXException ex) {
+                Logger.getLogger(KeyActionsFS.class.getName()).
+                        log(Level.SEVERE, null, ex);
+            }
+        }
+    }
+
+    /**
+     * Get the actions by name, on the EDT. Called by Module.restored,
+     * after earlyInit; the actions come from the factory.
+     */
+    static void initActions() {
+        ViManager.runInDispatch(true, new Runnable() {
+            @Override
+            public void run() {
+                if(actions != null)
+                    return;
+                Map<String, Action> m = new HashMap<String, Action>();
+                for(Action action : KeyBinding.getActionsList()) {
+                    m.put((String)action.getValue(Action.NAME), action);
+                }
+                actions = m;
+            }
+        });
+    }
+
+    /**
+     * The instanceCreate of the generated layer's files.
+     * The file's name is the action's name.
+     * This only reads the map made by initActions, it never waits;
+     * the caller may hold the folder or lookup locks.
+     */
+    public static Action createAction(FileObject fo) {
+        Map<String, Action> m = actions;
+        if(m == null) {
+            Logger.getLogger(KeyActionsFS.class.getName()).log(Level.WARNING,
+                    "jVi actions not ready for {0}", fo.getPath());
+            return null;
+        }
+        Action action = m.get(fo.getName());
+        if(action == null)
+            Logger.getLogger(KeyActionsFS.class.getName()).log(Level.WARNING,
+                    "no jVi action for {0}", fo.getPath());
+        return action;
     }
 
     public static void injectKeyActionsLayer() {
@@ -20,7 +20,12 @@
 
 package org.netbeans.modules.jvi;
 
+import java.awt.EventQueue;
 import java.awt.event.ActionEvent;
+import java.awt.event.FocusEvent;
+import java.awt.event.FocusListener;
+import java.awt.event.HierarchyEvent;
+import java.awt.event.HierarchyListener;
 import java.awt.event.InputEvent;
 import java.awt.event.KeyEvent;
 import java.beans.PropertyChangeEvent;
@@ -30,11 +35,13 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.WeakHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -55,6 +62,7 @@ import org.netbeans.editor.BaseAction;
 import org.netbeans.editor.BaseKit;
 import org.netbeans.editor.BaseTextUI;
 import org.netbeans.modules.editor.settings.storage.spi.StorageFilter;
+import org.netbeans.modules.jvi.impl.KeyLatency;
 import org.netbeans.modules.jvi.impl.NbCaret;
 import org.netbeans.modules.jvi.impl.NbFactory;
 import org.openide.util.WeakSet;
@@ -84,6 +92,8 @@ import static org.netbeans.modules.jvi.Module.jViEnabled;
 public class KeyBindings {
     static final Logger LOG = Logger.getLogger(Module.class.getName());
     private static KeybindingsInjector KB_INJECTOR = null;
+    /** bumped when the jVi bindings change, see KeybindingsInjector */
+    private static final AtomicInteger jviBindingsVersion = new AtomicInteger();
     private static final String JVI_INSTALL_ACTION_NAME = "jvi-install";
     private static Map<JEditorPane, Action> epToDefaultKeyAction =
             new HashMap<JEditorPane, Action>();
@@ -92,6 +102,9 @@ public class KeyBindings {
     private static Map<JEditorPane, Caret> editorToCaret =
             new WeakHashMap<JEditorPane, Caret>();
     private static Set<JEditorPane> knownEditors = new WeakSet<JEditorPane>();
+    // a SET, known editors that jVi is not yet set up in, see installWhenUsed
+    private static final Map<JEditorPane, Object> pendingEditors =
+            new WeakHashMap<JEditorPane, Object>();
 
     private static boolean didInit;
     @ServiceProvider(service=ViInitialization.class,
@@ -118,9 +131,11 @@ public class KeyBindings {
                 if (dbgNb().getBoolean())
                     dbgNb().println("Injector: change: "
                             + evt.getPropertyName());
-                if (evt.getPropertyName().equals(KeyBinding.KEY_BINDINGS))
+                if (evt.getPropertyName().equals(KeyBinding.KEY_BINDINGS)) {
                     // the bindings have changed
+                    jviBindingsVersion.incrementAndGet();
                     enableKeyBindings();
+                }
             }
         };
         KeyBinding.addPropertyChangeListener(KeyBinding.KEY_BINDINGS, pcl);
@@ -128,6 +143,70 @@ public class KeyBindings {
             LOG.setLevel(Level.FINEST);
     }
 
+    /** editors handled per event loop turn when enabling/disabling */
+    private static final int EDITOR_CHUNK = 20;
+    /** a newer enable/disable abandons the one in progress */
+    private static int toggleGen;
+
+    private interface EditorOp
+    {
+        void run(JEditorPane ep);
+        /** @param tEditors nanos spent in run, summed over the chunks */
+        void done(long tEditors);
+    }
+
+    /**
+     * Run op for each editor, a chunk at a time with other events
+     * getting a chance in between; then op's done.
+     * Nothing more is done if there's another enable/disable.
+     */
+    private static void forEachEditor(final List<JEditorPane> eps,
+                                      final EditorOp op)
+    {
+        final int gen = ++toggleGen;
+        new Runnable() {
+            private int i;
+            private long tEditors;
+            @Override
+            public void run()
+            {
+                if(gen != toggleGen)
+                    return;
+                long t0 = System.nanoTime();
+                int end = Math.min(i + EDITOR_CHUNK, eps.size());
+                for(; i < end; i++) {
+                    op.run(eps.get(i));
+                }
+                tEditors += System.nanoTime() - t0;
+                if(i < eps.size())
+                    EventQueue.invokeLater(this);
+                else
+                    op.done(tEditors);
+            }
+        }.run();
+    }
+
+    /**
+     * keymap and editors are the time spent doing them; elapsed is
+     * from the start until now, including other events in between chunks.
+     */
+    private static void reportToggle(String what, List<JEditorPane> eps,
+                                     long t0, long tKeymap, long tEditors)
+    {
+        Set<String> mimeTypes = new HashSet<String>();
+        for (JEditorPane ep : eps) {
+            mimeTypes.add(ep.getContentType());
+        }
+        long t1 = System.nanoTime();
+        LOG.log(Level.INFO, String.format(
+                "jVi %s: %d editors, %d mime types, keymap %.1fms,"
+                + " editors %.1fms in %d chunks, elapsed %.1fms",
+                what, eps.size(), mimeTypes.size(), tKeymap / 1e6,
+                tEditors / 1e6,
+                (eps.size() + EDITOR_CHUNK - 1) / EDITOR_CHUNK,
+                (t1 - t0) / 1e6));
+    }
+
     /** updates the keymap and restores DKTA and caret */
     static void enableKeyBindings()
     {
@@ -135,24 +214,38 @@ public class KeyBindings {
             dbgNb().println(MOD + " enableKeyBindings knownJEP: "
                     + knownEditors.size());
 
+        final long t0 = System.nanoTime();
         KeyBindings.updateKeymap();
+        final long tKeymap = System.nanoTime() - t0;
 
         // give all the editors the jVi DKTA and cursor
-        for (JEditorPane ep : knownEditors) {
-            LOG.log(Level.FINE, "{0} enableKeyBindings knownJEP: {1}",
-                    new Object[]{MOD, Module.getName(ep)});
-            TextUI ui = ep.getUI();
-            if(ui instanceof BaseTextUI) {
-                if(dbgNb().getBoolean())
-                    dbgNb().println(MOD + " enableKeyBindings knownJEP: "
-                            + Module.getName(ep));
-                captureDefaultKeyTypedActionAndEtc(ep);
-                checkCaret(ep);
-            } else
-                LOG.log(Level.WARNING,
-                        "enableKeyBindings not NB BaseTextUI: {0}",
-                        Module.getName(ep));
-        }
+        final List<JEditorPane> eps = new ArrayList<JEditorPane>(knownEditors);
+        forEachEditor(eps, new EditorOp() {
+            @Override
+            public void run(JEditorPane ep)
+            {
+                if(!jViEnabled())
+                    return;
+                LOG.log(Level.FINE, "{0} enableKeyBindings knownJEP: {1}",
+                        new Object[]{MOD, Module.getName(ep)});
+                TextUI ui = ep.getUI();
+                if(ui instanceof BaseTextUI) {
+                    if(dbgNb().getBoolean())
+                        dbgNb().println(MOD + " enableKeyBindings knownJEP: "
+                                + Module.getName(ep));
+                    installWhenUsed(ep);
+                } else
+                    LOG.log(Level.WARNING,
+                            "enableKeyBindings not NB BaseTextUI: {0}",
+                            Module.getName(ep));
+            }
+
+            @Override
+            public void done(long tEditors)
+            {
+                reportToggle("enable", eps, t0, tKeymap, tEditors);
+            }
+        });
     }
 
     static void disableKeyBindings()
@@ -161,31 +254,51 @@ public class KeyBindings {
             dbgNb().println(MOD + " disableKeyBindings knownJEP: "
                     + knownEditors.size());
 
+        final long t0 = System.nanoTime();
+        // editors that were never used don't have anything to restore
+        for (JEditorPane ep : new ArrayList<JEditorPane>(
+                                            pendingEditors.keySet())) {
+            cancelInstall(ep);
+        }
+
         // restore the carets
-        for (JEditorPane ep : knownEditors) {
-            Caret c01 = editorToCaret.get(ep);
-            if(c01 != null) {
-                if(ep.getCaret() instanceof NbCaret) {
-                    LOG.log(Level.FINE, "{0} disableKeyBindings knownJEP: {1}",
-                            new Object[]{MOD, Module.getName(ep)});
-                    if(dbgNb().getBoolean()) {
-                        dbgNb().println("restore caret: " + Module.getName(ep));
-                    }
-                    try {
-                        NbFactory.installCaret(ep, c01);
-                    } catch(NullPointerException ex) {
-                        System.err.println("OUCH");
+        final List<JEditorPane> eps = new ArrayList<JEditorPane>(knownEditors);
+        forEachEditor(eps, new EditorOp() {
+            @Override
+            public void run(JEditorPane ep)
+            {
+                Caret c01 = editorToCaret.get(ep);
+                if(c01 != null) {
+                    if(ep.getCaret() instanceof NbCaret) {
+                        LOG.log(Level.FINE, "{0} disableKeyBindings knownJEP: {1}",
+                                new Object[]{MOD, Module.getName(ep)});
+                        if(dbgNb().getBoolean()) {
+                            dbgNb().println("restore caret: " + Module.getName(ep));
+                        }
+                        try {
+                            NbFactory.installCaret(ep, c01);
+                        } catch(NullPointerException ex) {
+                            System.err.println("OUCH");
+                        }
                     }
+                    editorToCaret.remove(ep);
                 }
-                editorToCaret.remove(ep);
             }
-        }
-        if(editorToCaret.size() > 0) {
-            System.err.println(MOD + "restore caret: "
-                + "HUH? editorToCaret size: " + editorToCaret.size());
-        }
 
-        KeyBindings.updateKeymap();
+            @Override
+            public void done(long tEditors)
+            {
+                if(editorToCaret.size() > 0) {
+                    System.err.println(MOD + "restore caret: "
+                        + "HUH? editorToCaret size: " + editorToCaret.size());
+                }
+
+                long t1 = System.nanoTime();
+                KeyBindings.updateKeymap();
+                reportToggle("disable", eps, t0, System.nanoTime() - t1,
+                             tEditors);
+            }
+        });
     }
 
     static void dumpKit()
@@ -206,7 +319,11 @@ public class KeyBindings {
      */
     private static boolean addKnownEditor(JEditorPane ep)
     {
-        return knownEditors.add(ep);
+        EditorPaneIndex.add(ep);
+        if(!knownEditors.add(ep))
+            return false;
+        KeyLatency.install(ep);
+        return true;
     }
 
     /**
@@ -215,9 +332,91 @@ public class KeyBindings {
     static boolean removeKnownEditor(JEditorPane ep)
     {
         editorToCaret.remove(ep);
+        cancelInstall(ep);
+        EditorPaneIndex.remove(ep);
+        KeyLatency.uninstall(ep);
         return knownEditors.remove(ep);
     }
 
+    /**
+     * Set up jVi in the editor: the DKTA, keypad keys, font tracking
+     * and the caret. With many editors open, like after restoring a
+     * session, most are never looked at; so unless the editor is
+     * showing this waits until it is shown or gets focus.
+     */
+    private static void installWhenUsed(JEditorPane ep)
+    {
+        if(ep.isShowing() || ep.hasFocus()) {
+            cancelInstall(ep);
+            installNow(ep);
+            return;
+        }
+        if(pendingEditors.containsKey(ep))
+            return;
+        pendingEditors.put(ep, null);
+        // the caret might get set up on focus before the listener runs
+        if (!(ep.getCaret() instanceof ViCaret)
+                && editorToCaret.get(ep) == null)
+            editorToCaret.put(ep, ep.getCaret());
+        ep.addHierarchyListener(lazyInstaller);
+        ep.addFocusListener(lazyInstaller);
+        if (dbgNb().getBoolean())
+            dbgNb().println(MOD + "install deferred: " + cid(ep));
+    }
+
+    private static void installNow(JEditorPane ep)
+    {
+        captureDefaultKeyTypedActionAndEtc(ep);
+        // Make sure the nomadic editors have the right cursor.
+        checkCaret(ep);
+    }
+
+    /** @return true if the editor was waiting */
+    private static boolean cancelInstall(JEditorPane ep)
+    {
+        if(!pendingEditors.containsKey(ep))
+            return false;
+        pendingEditors.remove(ep);
+        ep.removeHierarchyListener(lazyInstaller);
+        ep.removeFocusListener(lazyInstaller);
+        return true;
+    }
+
+    private static final LazyInstaller lazyInstaller = new LazyInstaller();
+    private static class LazyInstaller
+            implements HierarchyListener, FocusListener
+    {
+        private void install(JEditorPane ep)
+        {
+            if(!cancelInstall(ep))
+                return;
+            if(jViEnabled() && knownEditors.contains(ep)) {
+                if (dbgNb().getBoolean())
+                    dbgNb().println(MOD + "deferred install: " + cid(ep));
+                installNow(ep);
+            }
+        }
+
+        @Override
+        public void hierarchyChanged(HierarchyEvent e)
+        {
+            if((e.getChangeFlags() & HierarchyEvent.SHOWING_CHANGED) != 0
+                    && e.getComponent().isShowing())
+                install((JEditorPane)e.getComponent());
+        }
+
+        @Override
+        public void focusGained(FocusEvent e)
+        {
+            install((JEditorPane)e.getComponent());
+        }
+
+        @Override
+        public void focusLost(FocusEvent e)
+        {
+        }
+    }
+
     /** EXPECTED THAT forceKeymapRefresh DOES NOT RETUN UNTILL ALL KEYMAPS DONE*/
     static void updateKeymap()
     {
@@ -424,9 +623,66 @@ public class KeyBindings {
         // rebuilt/updated when the jvi bindings change
         private static final Map<Collection<KeyStroke>, MultiKeyBinding> mapJvi =
                 new HashMap<Collection<KeyStroke>, MultiKeyBinding>();
+        // the jviBindingsVersion that mapJvi was built from
+        private static int mapJviVersion = -1;
         Map<String, Map<Collection<KeyStroke>, MultiKeyBinding>> origMaps =
                 new HashMap<String, Map<Collection<KeyStroke>, MultiKeyBinding>>();
 
+        /**
+         * What afterLoad did for a (mimePath, profile, defaults); the
+         * NB bindings that were taken out. Good for as long as the jVi
+         * bindings and the NB bindings stay the same.
+         */
+        private static class Filtered {
+            final long firstKeys;
+            final Map<Collection<KeyStroke>, MultiKeyBinding> removed;
+
+            Filtered(long firstKeys,
+                     Map<Collection<KeyStroke>, MultiKeyBinding> removed)
+            {
+                this.firstKeys = firstKeys;
+                this.removed = removed;
+            }
+
+            /**
+             * The first keystrokes of the multi-key bindings are what
+             * the filtering looks at; a new multi-key binding changes
+             * this, even if the map stays the same size.
+             * @return count in the high word, sum of hash in the low
+             */
+            static long firstKeys(
+                    Map<Collection<KeyStroke>, MultiKeyBinding> map)
+            {
+                int count = 0;
+                int hash = 0;
+                for (MultiKeyBinding mkb : map.values()) {
+                    if(mkb.getKeyStrokeCount() <= 1)
+                        continue;
+                    count++;
+                    hash += mkb.getKeyStroke(0).hashCode();
+                }
+                return ((long)count << 32) | (hash & 0xffffffffL);
+            }
+
+            /** @return true if map is what this was made from */
+            boolean matches(Map<Collection<KeyStroke>, MultiKeyBinding> map)
+            {
+                if(firstKeys(map) != firstKeys)
+                    return false;
+                for (Map.Entry<Collection<KeyStroke>, MultiKeyBinding> entry
+                        : removed.entrySet()) {
+                    if(!entry.getValue().equals(map.get(entry.getKey())))
+                        return false;
+                }
+                return true;
+            }
+        }
+        // cleared when mapJvi is rebuilt or NB bindings are saved
+        private static final Map<String, Filtered> filtered
+                = new HashMap<String, Filtered>();
+        private static int nHit;
+        private static int nMiss;
+
         @SuppressWarnings("LeakingThisInConstructor")
         public KeybindingsInjector()
         {
@@ -441,9 +697,8 @@ public class KeyBindings {
         {
             if (dbgNb().getBoolean())
                 dbgNb().println("Injector: forceKeymapRefresh: ");
-            synchronized (mapJvi) {
-                mapJvi.clear();
-            }
+            // mapJvi and the filtered maps are still good unless
+            // the jVi bindings changed, afterLoad checks the version.
             notifyChanges();
             if (dbgNb().getBoolean())
                 dbgNb().println("Injector: forceKeymapRefresh: done");
@@ -476,8 +731,11 @@ public class KeyBindings {
                 // NEEDSWORK: is this the right thing?
             origMaps.put(key, mapOrig);
             synchronized (mapJvi) {
-                if (mapJvi.isEmpty()) {
+                int version = jviBindingsVersion.get();
+                if (mapJviVersion != version) {
                     // If needed, build jvi bindings map.
+                    mapJvi.clear();
+                    filtered.clear();
                     List<JTextComponent.KeyBinding> l =
                             KeyBinding.getBindingsList();
                     for (JTextComponent.KeyBinding kb : l) {
@@ -486,36 +744,51 @@ public class KeyBindings {
                         mapJvi.put(mkb.getKeyStrokeList(),
                                                        mkb);
                     }
+                    mapJviVersion = version;
 
                     if (dbgNb().getBoolean())
                         dbgNb().println("Injector: build jVi map. size " +
                                 mapJvi.size());
                 }
 
-                // Bug 138172 - single key binding added in
-                //      StorageFilter.afterLoad doesn't replace multikeybinding
-                // So spin through current keybindings and if first key of a
-                // multikeybinding is a jVi keybinding, then remove it.
-                List<KeyStroke> ksl =
-                        new ArrayList<KeyStroke>();
-                ksl.add(null);
-                Iterator<MultiKeyBinding> it = map.values().iterator();
-                while (it.hasNext()) {
-                    MultiKeyBinding mkbOrig = it.next();
-                    if(mkbOrig.getKeyStrokeCount() <= 1)
-                        continue;
-                    // ksl is a keyStrokList of the first key of the NB binding
-                    ksl.set(0, mkbOrig.getKeyStroke(0));
-                    // If the NB binding starts with a jVi binding, then stash it
-                    if (mapJvi.get(ksl) != null) {
-                        mapOrig.put(mkbOrig.getKeyStrokeList(), mkbOrig);
-                        it.remove();
+                Filtered f = filtered.get(key);
+                if (f != null && f.matches(map)) {
+                    // Same as last time, take out the same bindings
+                    nHit++;
+                    mapOrig.putAll(f.removed);
+                    map.keySet().removeAll(f.removed.keySet());
+                } else {
+                    nMiss++;
+                    // Bug 138172 - single key binding added in
+                    //      StorageFilter.afterLoad doesn't replace multikeybinding
+                    // So spin through current keybindings and if first key of a
+                    // multikeybinding is a jVi keybinding, then remove it.
+                    long firstKeys = Filtered.firstKeys(map);
+                    List<KeyStroke> ksl =
+                            new ArrayList<KeyStroke>();
+                    ksl.add(null);
+                    Iterator<MultiKeyBinding> it = map.values().iterator();
+                    while (it.hasNext()) {
+                        MultiKeyBinding mkbOrig = it.next();
+                        if(mkbOrig.getKeyStrokeCount() <= 1)
+                            continue;
+                        // ksl is a keyStrokList of the first key of the NB binding
+                        ksl.set(0, mkbOrig.getKeyStroke(0));
+                        // If the NB binding starts with a jVi binding, then stash it
+                        if (mapJvi.get(ksl) != null) {
+                            mapOrig.put(mkbOrig.getKeyStrokeList(), mkbOrig);
+                            it.remove();
+                        }
                     }
+                    filtered.put(key, new Filtered(firstKeys,
+                            new HashMap<Collection<KeyStroke>, MultiKeyBinding>(
+                                    mapOrig)));
                 }
                 if (dbgNb().getBoolean())
                     dbgNb().println("Injector: afterLoad: " + "mimePath \'" +
                             mimePath + "\' profile \'" + profile + "\' defaults \'" +
-                            defaults + "\' orig map size: " + map.size());
+                            defaults + "\' orig map size: " + map.size()
+                            + " cache hit/miss " + nHit + "/" + nMiss);
                 map.putAll(mapJvi);
             }
         }
@@ -531,6 +804,10 @@ public class KeyBindings {
                 return;
             Map<Collection<KeyStroke>, MultiKeyBinding> mapOrig =
                     origMaps.get(createKey(mimePath, profile, defaults));
+            // NB bindings are changing, what afterLoad saw is stale
+            synchronized (mapJvi) {
+                filtered.clear();
+            }
             //synchronized (mapJvi) {
             //    //
             //    // NEEDSWORK: the map doesn't have the jvi keybindings YET
@@ -575,9 +852,7 @@ public class KeyBindings {
                 dbgNb().printf(MOD + "kit installed: %s into %s\n",
                                   ep.getEditorKit().getClass().getSimpleName(),
                                   cid(ep));
-            captureDefaultKeyTypedActionAndEtc(ep);
-            // Make sure the nomadic editors have the right cursor.
-            checkCaret(ep);
+            installWhenUsed(ep);
         }
     }
 
@@ -12,13 +12,17 @@ import java.io.FilenameFilter;
 import java.io.IOException;
 import java.lang.ref.WeakReference;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.WeakHashMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.prefs.BackingStoreException;
 import java.util.prefs.PreferenceChangeEvent;
 import java.util.prefs.PreferenceChangeListener;
 import java.util.prefs.Preferences;
@@ -30,10 +34,13 @@ import javax.swing.JEditorPane;
 import javax.swing.JMenuItem;
 import javax.swing.SwingUtilities;
 
+import org.netbeans.modules.jvi.impl.KeyLatency;
 import org.netbeans.modules.jvi.impl.NbAppView;
 import org.netbeans.modules.jvi.impl.NbFS;
 import org.netbeans.modules.jvi.impl.NbFactory;
 import org.netbeans.modules.jvi.impl.NbJviPrefs;
+import org.netbeans.modules.jvi.impl.PrefsDispatcher;
+import org.netbeans.modules.jvi.impl.RegisterPreferences;
 import org.netbeans.modules.jvi.reflect.NbWindows;
 import org.netbeans.modules.jvi.spi.WindowsProvider;
 import org.openide.DialogDisplayer;
@@ -50,6 +57,7 @@ import org.openide.modules.ModuleInstall;
 import org.openide.modules.SpecificationVersion;
 import org.openide.util.ImageUtilities;
 import org.openide.util.Lookup;
+import org.openide.util.RequestProcessor;
 import org.openide.util.actions.Presenter;
 import org.openide.util.lookup.ServiceProvider;
 import org.openide.windows.Mode;
@@ -141,9 +149,15 @@ public class Module extends ModuleInstall
     // a SET
     private static final Map<TopComponent, Object> tcChecked
             = new WeakHashMap<TopComponent, Object>();
+    // a SET, the opened top components, kept by the registry listener
+    private static final Map<TopComponent, Object> tcOpened
+            = new WeakHashMap<TopComponent, Object>();
 
     private static Runnable shutdownHook;
 
+    private static final RequestProcessor RP
+            = new RequestProcessor(Module.class.getName());
+
     private static boolean didInit;
     @ServiceProvider(service=ViInitialization.class,
                      path="jVi/init",
@@ -189,6 +203,8 @@ public class Module extends ModuleInstall
                         // look into the preferences file,
                         // not what the preferences subsystem thinks,
                         // to see if the key value is there.
+                        if(RegisterPreferences.NODE.equals(child))
+                            return RegisterPreferences.fileHasKeyValue(key, val);
                         FileObject cf = FileUtil.getConfigFile(
                               "Preferences" + prefs.absolutePath()
                               + "/" + child + ".properties");
@@ -252,80 +268,17 @@ public class Module extends ModuleInstall
         if (dbgNb().getBoolean()) {
             dbgNb().println(MOD + "***** restored *****");
         }
-        // Look for an UndoRedo-patch.jar
-        File patchDir = InstalledFileLocator.getDefault().locate(
-                "modules/patches/org-openide-awt", null, false);
-        if(patchDir != null) {
-            LOG.log(Level.INFO, "Found patch dir \"{0}\"", patchDir.getAbsolutePath());
-            File[] f = patchDir.listFiles(new FilenameFilter() {
-                   @Override
-                   public boolean accept(File dir, String name)
-                   {
-                       return name.contains("UndoRedo-patch");
-                   }
-               });
-            if(f != null && f.length > 0) {
-                NotifyDescriptor d = new NotifyDescriptor.Message(
-                        "Found \"" + f[0].getAbsolutePath() + "\"\n"
-                        + "If for jVi undo/redo operation then"
-                        + " \n\nremove this file and restart NetBeans\n\n"
-                        + "or functionality is lost."
-                        + "\nNetBeans now has native support"
-                        + "for UndoRedo grouping.",
-                        NotifyDescriptor.WARNING_MESSAGE);
-                DialogDisplayer.getDefault().notify(d);
-            }
-        }
+        long tStart = System.nanoTime();
+        long t0 = tStart;
+        StringBuilder timing = new StringBuilder();
 
-        for (ModuleInfo mi : Lookup.getDefault().lookupAll(ModuleInfo.class)) {
-            if (mi.getCodeNameBase().equals(
-                    "org.netbeans.modules.editor.codetemplates")) {
-                if (mi.getSpecificationVersion().compareTo(
-                        new SpecificationVersion("1.8.0")) < 0) {
-                    ViManager.putHackMap(
-                            "NB-codetemplatesHang", Boolean.TRUE);
-                }
-            } else if (mi.getCodeNameBase().equals(
-                    "org.netbeans.modules.editor.lib2")) {
-                //System.err.println("LIB2 VERSION: "
-                //        + mi.getSpecificationVersion());
-                if (mi.getSpecificationVersion().compareTo(
-                        new SpecificationVersion("1.11.1.2")) >= 0) {
-                    // HACK_CC fixup code-compl registratin and bindings
-                    ViManager.putHackMap(HACK_CC, Boolean.TRUE);
-                    ViManager.putHackMap(HACK_SCROLL, Boolean.TRUE);
-                }
-            } else if (mi.getCodeNameBase().equals(
-                    "org.netbeans.core.windows")) {
-                if (mi.getSpecificationVersion().compareTo(
-                        new SpecificationVersion("2.41.1")) >= 0) {
-                    ViManager.putHackMap(HACK_WINDOW_GROUP, Boolean.TRUE);
-                }
-            } else if (mi.getCodeNameBase().equals(
-                    "org.openide.text")) {
-                if (mi.getSpecificationVersion().compareTo(
-                        new SpecificationVersion("6.40")) > 0
-                    && mi.getSpecificationVersion().compareTo(
-                        new SpecificationVersion("6.43.2")) < 0)
-                {
-                    ViManager.putHackMap(HACK_CLONE_LOSE_EDITS, Boolean.TRUE);
-                }
-            } else if (mi.getCodeNameBase().equals(
-                    "org.netbeans.modules.editor.fold")) {
-                if (mi.getSpecificationVersion().compareTo(
-                        new SpecificationVersion("1.37.1")) >= 0) // NB-7.4
-                {
-                    ViManager.putHackMap(HACK_FOLD_ASYNC, Boolean.TRUE);
-                }
-            } else if (mi.getCodeNameBase().equals(
-                    "org.netbeans.modules.versioning.ui")) {
-                if (mi.getSpecificationVersion().compareTo(
-                        new SpecificationVersion("1.16.0")) < 0) // <= NB-7.4
-                {
-                    ViManager.putHackMap(HACK_DIFF_SIDEBAR_DIRTY, Boolean.TRUE);
-                }
-            }
-        }
+        // Look for an UndoRedo-patch.jar, it's only a warning
+        RP.post(new Runnable() {
+            @Override public void run() { checkPatchDir(); }
+        });
+
+        detectHackFlags();
+        t0 = startupMark(timing, "hacks", t0);
 
         if(ViManager.getHackFlag(HACK_CLONE_LOSE_EDITS)) {
             WindowManager.getDefault().invokeWhenUIReady(new Runnable() {
@@ -334,8 +287,11 @@ public class Module extends ModuleInstall
         }
 
         earlyInit(); // set up the ViFactory
+        KeyActionsFS.initActions();
+        t0 = startupMark(timing, "factory", t0);
         // Add the actions used by jVi to the System's FileSystem
         KeyActionsFS.injectKeyActionsLayer();
+        t0 = startupMark(timing, "layer", t0);
 
         // in layer.xml Actions/Tools: <file name="o-n-m-jvi-enable.instance">
         // produces the checkbox linked to preferences.
@@ -354,11 +310,17 @@ public class Module extends ModuleInstall
             topComponentRegistryListener = new TopComponentRegistryListener();
             TopComponent.getRegistry().addPropertyChangeListener(
                     topComponentRegistryListener);
+            for(TopComponent tc : TopComponent.getRegistry().getOpened()) {
+                tcOpened.put(tc, null);
+            }
         }
 
+        t0 = startupMark(timing, "registry", t0);
+
         if (isModuleEnabled()) {
             ViManager.runInDispatch(true, new RunJViEnable());
         }
+        startupMark(timing, "enable", t0);
 
         prefNode.addPreferenceChangeListener(new PreferenceChangeListener() {
             @Override
@@ -381,6 +343,109 @@ public class Module extends ModuleInstall
                 }
             }
         });
+        startupMark(timing, "total", tStart);
+        LOG.log(Level.INFO, "jVi restored:{0}", timing);
+    }
+
+    /** append the time since t0 to timing, @return now */
+    private static long startupMark(StringBuilder timing, String what, long t0)
+    {
+        long t1 = System.nanoTime();
+        timing.append(String.format(" %s %.1fms", what, (t1 - t0) / 1e6));
+        return t1;
+    }
+
+    private static void checkPatchDir()
+    {
+        File patchDir = InstalledFileLocator.getDefault().locate(
+                "modules/patches/org-openide-awt", null, false);
+        if(patchDir != null) {
+            LOG.log(Level.INFO, "Found patch dir \"{0}\"", patchDir.getAbsolutePath());
+            File[] f = patchDir.listFiles(new FilenameFilter() {
+                   @Override
+                   public boolean accept(File dir, String name)
+                   {
+                       return name.contains("UndoRedo-patch");
+                   }
+               });
+            if(f != null && f.length > 0) {
+                NotifyDescriptor d = new NotifyDescriptor.Message(
+                        "Found \"" + f[0].getAbsolutePath() + "\"\n"
+                        + "If for jVi undo/redo operation then"
+                        + " \n\nremove this file and restart NetBeans\n\n"
+                        + "or functionality is lost."
+                        + "\nNetBeans now has native support"
+                        + "for UndoRedo grouping.",
+                        NotifyDescriptor.WARNING_MESSAGE);
+                DialogDisplayer.getDefault().notifyLater(d);
+            }
+        }
+    }
+
+    /** The modules whose versions determine the hack flags. */
+    private static final String[] HACK_MODULES = new String[] {
+        "org.netbeans.modules.editor.codetemplates",
+        "org.netbeans.modules.editor.lib2",
+        "org.netbeans.core.windows",
+        "org.openide.text",
+        "org.netbeans.modules.editor.fold",
+        "org.netbeans.modules.versioning.ui",
+    };
+
+    /**
+     * Set the hack flags from the versions of some modules.
+     * The modules are looked for in one pass, that stops when
+     * they've all been found.
+     */
+    private static void detectHackFlags()
+    {
+        Map<String, SpecificationVersion> versions
+                = new HashMap<String, SpecificationVersion>();
+        Set<String> wanted = new HashSet<String>(Arrays.asList(HACK_MODULES));
+        for (ModuleInfo mi : Lookup.getDefault().lookupAll(ModuleInfo.class)) {
+            if(wanted.remove(mi.getCodeNameBase())) {
+                versions.put(mi.getCodeNameBase(),
+                             mi.getSpecificationVersion());
+                if(wanted.isEmpty())
+                    break;
+            }
+        }
+
+        List<String> hacks = new ArrayList<String>();
+        SpecificationVersion v;
+        v = versions.get("org.netbeans.modules.editor.codetemplates");
+        if (v != null && v.compareTo(new SpecificationVersion("1.8.0")) < 0) {
+            hacks.add("NB-codetemplatesHang");
+        }
+        v = versions.get("org.netbeans.modules.editor.lib2");
+        if (v != null && v.compareTo(new SpecificationVersion("1.11.1.2")) >= 0) {
+            // HACK_CC fixup code-compl registratin and bindings
+            hacks.add(HACK_CC);
+            hacks.add(HACK_SCROLL);
+        }
+        v = versions.get("org.netbeans.core.windows");
+        if (v != null && v.compareTo(new SpecificationVersion("2.41.1")) >= 0) {
+            hacks.add(HACK_WINDOW_GROUP);
+        }
+        v = versions.get("org.openide.text");
+        if (v != null && v.compareTo(new SpecificationVersion("6.40")) > 0
+                && v.compareTo(new SpecificationVersion("6.43.2")) < 0) {
+            hacks.add(HACK_CLONE_LOSE_EDITS);
+        }
+        v = versions.get("org.netbeans.modules.editor.fold");
+        if (v != null && v.compareTo(new SpecificationVersion("1.37.1")) >= 0) {
+            // NB-7.4
+            hacks.add(HACK_FOLD_ASYNC);
+        }
+        v = versions.get("org.netbeans.modules.versioning.ui");
+        if (v != null && v.compareTo(new SpecificationVersion("1.16.0")) < 0) {
+            // <= NB-7.4
+            hacks.add(HACK_DIFF_SIDEBAR_DIRTY);
+        }
+
+        for(String hack : hacks) {
+            ViManager.putHackMap(hack, Boolean.TRUE);
+        }
     }
 
     private static void permanentDisableDialog()
@@ -453,19 +518,38 @@ public class Module extends ModuleInstall
     public void close() {
         if(shutdownHook != null)
             shutdownHook.run();
+        NbJviPrefs.saveUsedMimeNow();
+        // registers and history are written in the background
+        try {
+            factory.getPreferences().flush();
+        } catch(BackingStoreException ex) {
+            LOG.log(Level.SEVERE, null, ex);
+        }
+        KeyLatency.unregister();
     }
 
-    private static boolean didEarlyInit = false;
-    public static synchronized void earlyInit() {
+    @Override
+    public void uninstalled() {
+        KeyLatency.unregister();
+    }
+
+    private static volatile boolean didEarlyInit = false;
+    /**
+     * Create the factory, on the EDT. No lock is held while waiting
+     * for the EDT, the check is made there.
+     */
+    public static void earlyInit() {
         if(didEarlyInit)
             return;
-        didEarlyInit = true;
 
         ViManager.runInDispatch(true, new Runnable() {
             @Override
             public void run() {
+                if(didEarlyInit)
+                    return;
                 factory = new NbFactory();
                 ViManager.setViFactory(factory);
+                didEarlyInit = true;
             }
         });
     }
@@ -567,6 +651,14 @@ public class Module extends ModuleInstall
                 }
             }, EnumSet.of(CcFlag.DBG)
         );
+        ColonCommands.register("benchPrefsDispatch", "benchPrefsDispatch",
+            new ActionListener() {
+                @Override
+                public void actionPerformed(ActionEvent e) {
+                    PrefsDispatcher.bench(1000, 10000);
+                }
+            }, EnumSet.of(CcFlag.DBG)
+        );
         
         /*
         WindowManager.getDefault().addPropertyChangeListener(new PropertyChangeListener() {
@@ -650,8 +742,8 @@ public class Module extends ModuleInstall
                 tc = (TopComponent) evt.getNewValue();
                 if(tc != null) {
                     if(!tcChecked.containsKey(tc)) {
-                        // After first activation, look through the
-                        // GUI hierarchy again for jVi editors. Sigh.
+                        // After first activation, look again for jVi
+                        // editors, they may have been added lazily.
                         getOpenedPanes(tc); // force instantiation of editor panes
                         boolean isEditor = isEditor(tc);
 
@@ -668,6 +760,8 @@ public class Module extends ModuleInstall
             } else if(evt.getPropertyName()
                     .equals(TopComponent.Registry.PROP_TC_OPENED)) {
                 TopComponent tc = (TopComponent) evt.getNewValue();
+                if(tc != null)
+                    tcOpened.put(tc, null);
 
                 boolean isEditor = isEditor(tc);
                 tcDumpInfo(tc, "open");
@@ -678,8 +772,7 @@ public class Module extends ModuleInstall
 
                 boolean createdAppView = false;
 
-                // When opened, traverse the GUI hierarchy looking for
-                // JEP that have jVi installed.
+                // When opened, look for JEP that have jVi installed.
                 List<JEditorPane> l = getDescendentJviJep(tc);
                 for (JEditorPane ep : l) {
                     // if TC is not an editor then start out like a nomad
@@ -695,6 +788,7 @@ public class Module extends ModuleInstall
             } else if(evt.getPropertyName()
                     .equals(TopComponent.Registry.PROP_TC_CLOSED)) {
                 TopComponent tc = (TopComponent) evt.getNewValue();
+                tcOpened.remove(tc);
                 for (NbAppView av : NbAppView.fetchAvFromTC(tc)) {
                     tcDumpInfo(tc, "close");
                     KeyBindings.removeKnownEditor(av.getEditor());
@@ -705,36 +799,15 @@ public class Module extends ModuleInstall
         }
     }
 
-    public static List<JEditorPane> getDescendentJviJep(Component parent) {
-        List<JEditorPane> l = new ArrayList<JEditorPane>(2);
-        getDescendentJep(parent, l, true);
-        return l;
+    /**
+     * @return the jVi editors in the top component, see EditorPaneIndex
+     */
+    public static List<JEditorPane> getDescendentJviJep(TopComponent tc) {
+        return EditorPaneIndex.getPanes(tc, true);
     }
 
-    static List<JEditorPane> getDescendentJep(Component parent) {
-        List<JEditorPane> l = new ArrayList<JEditorPane>(2);
-        getDescendentJep(parent, l, false);
-        return l;
-    }
-
-    static void getDescendentJep(
-            Component parent, List<JEditorPane> l, boolean skipNonJvi)
-    {
-        if (parent instanceof Container) {
-            Component components[] = ((Container)parent).getComponents();
-            for(Component comp : components) {
-                if (comp != null) {
-                    if(comp instanceof JEditorPane) {
-                        if(skipNonJvi && !(((JEditorPane)comp).getCaret()
-                                instanceof ViCaret))
-                            continue;
-                        l.add((JEditorPane)comp);
-                    } else if (comp instanceof Container) {
-                        getDescendentJep(comp, l, skipNonJvi);
-                    }
-                }
-            }
-        }
+    static List<JEditorPane> getDescendentJep(TopComponent tc) {
+        return EditorPaneIndex.getPanes(tc, false);
     }
 
     @SuppressWarnings("UseOfSystemOutOrSystemErr")
@@ -864,7 +937,26 @@ public class Module extends ModuleInstall
      */
     public static TopComponent getKnownTopComponent(JEditorPane editorPane)
     {
-        Set<TopComponent> setTC = TopComponent.getRegistry().getOpened();
+        if(topComponentRegistryListener == null) {
+            // not tracking opened yet
+            return getKnownTopComponent(editorPane,
+                                    TopComponent.getRegistry().getOpened());
+        }
+        List<TopComponent> tcs = EditorPaneIndex.getTopComponents(editorPane);
+        if(tcs == null)
+            return getKnownTopComponent(editorPane, tcOpened.keySet());
+        TopComponent tc = null;
+        for(TopComponent tc01 : tcs) {
+            tc = tc01;
+            if(tcOpened.containsKey(tc))
+                break;
+        }
+        return tc;
+    }
+
+    private static TopComponent getKnownTopComponent(JEditorPane editorPane,
+                                                     Set<TopComponent> setTC)
+    {
         TopComponent tc = null;
         Container parent = SwingUtilities
                 .getAncestorOfClass(TopComponent.class, editorPane);
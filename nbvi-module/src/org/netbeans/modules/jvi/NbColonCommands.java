@@ -44,6 +44,8 @@ import javax.swing.JEditorPane;
 import javax.swing.text.JTextComponent;
 
 import org.netbeans.modules.editor.NbEditorUtilities;
+import org.netbeans.modules.jvi.impl.CTags;
+import org.netbeans.modules.jvi.impl.KeyLatency;
 import org.netbeans.modules.jvi.impl.NbTextView;
 import org.netbeans.modules.jvi.spi.WindowsProvider;
 import org.openide.util.ContextAwareAction;
@@ -126,6 +128,12 @@ public class NbColonCommands {
         delegate("rfintromet","rfintromethod", FsAct.RF_INTRODUCE_METHOD, null);
 
         ColonCommands.register("tog", "toggle", new ToggleAction(), null);
+
+        // tags file
+        CTags.init();
+
+        // ":keylatency" and the JMX bean
+        KeyLatency.init();
     }
 
     private NbColonCommands() {
@@ -20,12 +20,16 @@
 
 package org.netbeans.modules.jvi.completion;
 
+import java.awt.EventQueue;
 import java.awt.event.ActionEvent;
 import java.awt.event.FocusAdapter;
 import java.awt.event.FocusEvent;
 import java.awt.event.FocusListener;
 import java.awt.event.InputEvent;
 import java.awt.event.KeyEvent;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -42,6 +46,8 @@ import org.netbeans.api.editor.completion.Completion;
 import org.netbeans.lib.editor.util.swing.DocumentUtilities;
 import org.netbeans.modules.jvi.Module;
 import org.netbeans.modules.jvi.reflect.NbUtil;
+import org.netbeans.spi.editor.completion.CompletionResultSet;
+import org.openide.util.RequestProcessor;
 
 import com.raelity.jvi.ViCmdEntry;
 import com.raelity.jvi.core.ColonCommands;
@@ -165,7 +171,7 @@ public class CcCompletion
     // could improve with document events detecting change
     private static String cacheCommandString;
     private static ColonEvent cacheCommandColonEvent;
-    private static ColonEvent getColonEvent(String command)
+    private static synchronized ColonEvent getColonEvent(String command)
     {
         if(!command.equals(cacheCommandString)) {
             cacheCommandColonEvent = ColonCommands.parseCommandNoExec(command);
@@ -198,6 +204,165 @@ public class CcCompletion
                 && ce.getArg(1).startsWith("#");
     }
 
+    static boolean isFilePathCompletion(Document doc)
+    {
+        try {
+            String s = doc.getText(0, doc.getLength());
+            if(s.trim().isEmpty())
+                return false;
+            else {
+                return isFilePathCompletion(s);
+            }
+        } catch(BadLocationException ex) {
+            LOG.log(Level.SEVERE, null, ex);
+        }
+        return false;
+    }
+
+    /**
+     * A file name command, like ":e" or ":sp", that has a file argument
+     * started, or is followed by white space; and it isn't ":e#".
+     */
+    static boolean isFilePathCompletion(String command)
+    {
+        ColonEvent ce = getColonEvent(command);
+        if(ce == null
+                || !ce.getColonCommandItem().getFlags().contains(CcFlag.COMPL_FN))
+            return false;
+        if(ce.getNArg() == 0)
+            return Character.isWhitespace(command.charAt(command.length() - 1));
+        return !ce.getArg(1).startsWith("#");
+    }
+
+    /**
+     * @return offset in command of the command's argument, -1 if none.
+     * Skip the command name, a '!' and white space.
+     */
+    static int getArgOffset(String command)
+    {
+        ColonEvent ce = getColonEvent(command);
+        if(ce == null)
+            return -1;
+        int off = ce.getIndexInputCommandName();
+        if(off < 0)
+            return -1;
+        int len = command.length();
+        while(off < len && Character.isLetter(command.charAt(off)))
+            off++;
+        if(off < len && command.charAt(off) == '!')
+            off++;
+        while(off < len && Character.isWhitespace(command.charAt(off)))
+            off++;
+        return off;
+    }
+
+    //
+    // The completion tasks compute their results on a worker thread.
+    // What's needed from jVi and the window system, like parsing the
+    // command line or the list of app views, is taken on the EDT when
+    // the query is posted; the worker only does the matching, it makes
+    // new items and does not change items that may be displayed.
+    // A query that is superseded, by a newer query or refresh or by cancel,
+    // is stale; its results are dropped. There's one worker, so a task's
+    // queries run in order.
+    //
+
+    private static final RequestProcessor RP
+            = new RequestProcessor(CcCompletion.class.getName());
+
+    /** What a task does with a snapshot of the command line. */
+    interface QueryWork<T>
+    {
+        /**
+         * On the EDT, take what the worker needs.
+         * @return null if there is nothing to complete
+         */
+        T snapshot(String text);
+
+        /** On the worker. */
+        void run(CompletionResultSet resultSet, String text, T snapshot,
+                 Query q);
+    }
+
+    /** Track a task's queries, only the newest one is current. */
+    static final class Query
+    {
+        private final AtomicInteger generation = new AtomicInteger();
+        private int myGeneration;
+
+        private Query() { }
+
+        static Query create()
+        {
+            return new Query();
+        }
+
+        /**
+         * Snapshot the text of jtc and what the work needs,
+         * and have the work done on the worker.
+         * If there is nothing to complete, or the query is stale when the
+         * work would start, the result set is finished empty.
+         */
+        <T> void post(JTextComponent jtc,
+                      final CompletionResultSet resultSet,
+                      final QueryWork<T> work)
+        {
+            final String text = snapshot(jtc);
+            final int gen = generation.incrementAndGet();
+            final T snapshot = text == null ? null : snapshot(work, text);
+            RP.post(new Runnable() {
+                @Override
+                public void run()
+                {
+                    if(snapshot == null || gen != generation.get()) {
+                        resultSet.finish();
+                        return;
+                    }
+                    myGeneration = gen;
+                    work.run(resultSet, text, snapshot, Query.this);
+                }
+            });
+        }
+
+        /** @return true if the query being worked on is superseded */
+        boolean isStale()
+        {
+            return myGeneration != generation.get();
+        }
+
+        /** Whatever query is being worked on is stale. */
+        void cancel()
+        {
+            generation.incrementAndGet();
+        }
+    }
+
+    private static <T> T snapshot(final QueryWork<T> work, final String text)
+    {
+        if(EventQueue.isDispatchThread())
+            return work.snapshot(text);
+        final List<T> result = new ArrayList<T>(1);
+        ViManager.runInDispatch(true, new Runnable() {
+            @Override
+            public void run()
+            {
+                result.add(work.snapshot(text));
+            }
+        });
+        return result.isEmpty() ? null : result.get(0);
+    }
+
+    private static String snapshot(JTextComponent jtc)
+    {
+        Document doc = jtc.getDocument();
+        try {
+            return doc.getText(0, doc.getLength());
+        } catch(BadLocationException ex) {
+            LOG.log(Level.SEVERE, null, ex);
+            return null;
+        }
+    }
+
     static String state(JTextComponent jtc)
     {
         try {
@@ -27,8 +27,11 @@ import java.awt.Graphics2D;
 import java.awt.event.ActionEvent;
 import java.awt.event.KeyEvent;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.EnumSet;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.logging.Level;
 
 import javax.swing.Action;
@@ -54,6 +57,8 @@ import com.raelity.text.XMLUtil;
 
 /**
  * Command Name completion after ":"
+ * The command line is parsed, and the index of commands is built, on the EDT;
+ * the index is searched on a worker, see {@link CcCompletion.Query}.
  * 
  * @author Ernie Rael <err at raelity.com>
  */
@@ -63,9 +68,19 @@ public class CommandNameTask implements CompletionTask
 
     JTextComponent jtc;
     List<CommandNameItem> query;
+    private final CcCompletion.Query cq = CcCompletion.Query.create();
 
-    // These variables are used by CommandNameItem
-    private int startOffset;
+    /** what the last filter used, to narrow from */
+    // on the EDT
+    private String lastText;
+    private int lastOff = -1;
+    // on the worker
+    private String lastFilter;
+    private Node lastNode;
+    private int lastGeneration = -1;
+
+    /** where the command name starts, used by CommandNameItem */
+    private static final String PROP_START_OFFSET = "jvi-cn-start-offset";
 
     public CommandNameTask(JTextComponent jtc)
     {
@@ -78,12 +93,7 @@ public class CommandNameTask implements CompletionTask
     @Override
     public void query(CompletionResultSet resultSet)
     {
-        if(CcCompletion.isAlternateFileCompletion(jtc.getDocument())) {
-            resultSet.finish();
-            return;
-        }
-        buildQueryResult();
-        filterResult(resultSet, "QUERY CN");
+        cq.post(jtc, resultSet, new Work(true, "QUERY CN"));
     }
 
     @Override
@@ -94,13 +104,60 @@ public class CommandNameTask implements CompletionTask
                 dbgCompl.println("REFRESH CN with null resultSet " + jtc());
             return;
         }
-        if(CcCompletion.isAlternateFileCompletion(jtc.getDocument())) {
-            resultSet.finish();
-            return;
+        cq.post(jtc, resultSet, new Work(false, "REFRESH CN"));
+    }
+
+    /** What the worker needs, taken on the EDT. */
+    private static final class Snapshot
+    {
+        final Index idx;
+        /** offset of the command name, -1 if none */
+        final int off;
+        /** the query was rebuilt, don't narrow from the last filter */
+        final boolean reset;
+
+        Snapshot(Index idx, int off, boolean reset)
+        {
+            this.idx = idx;
+            this.off = off;
+            this.reset = reset;
+        }
+    }
+
+    private class Work implements CcCompletion.QueryWork<Snapshot>
+    {
+        private final boolean rebuild;
+        private final String tag;
+
+        Work(boolean rebuild, String tag)
+        {
+            this.rebuild = rebuild;
+            this.tag = tag;
+        }
+
+        @Override
+        public Snapshot snapshot(String text)
+        {
+            if(!text.trim().isEmpty()
+                    && CcCompletion.isAlternateFileCompletion(text))
+                return null;
+            boolean reset = rebuild || query == null;
+            if(reset)
+                buildQueryResult();
+            int off = findCommandName(text);
+            lastText = text;
+            lastOff = off;
+            if(off >= 0)
+                jtc.putClientProperty(PROP_START_OFFSET, off);
+            return new Snapshot(getIndex(), off, reset);
+        }
+
+        @Override
+        public void run(CompletionResultSet resultSet, String text,
+                        Snapshot snapshot, CcCompletion.Query q)
+        {
+            filterResult(resultSet, text, snapshot, q, tag);
         }
-        if(query == null)
-            buildQueryResult();
-        filterResult(resultSet, "REFRESH CN");
     }
 
     @Override
@@ -108,53 +165,168 @@ public class CommandNameTask implements CompletionTask
     {
         if (dbgCompl.getBoolean())
             dbgCompl.println("CANCEL CN: " + jtc());
+        cq.cancel();
         Completion.get().hideAll();
     }
 
+    /** on the EDT */
     private void buildQueryResult()
     {
-        query = new ArrayList<CommandNameItem>();
+        query = getIndex().items;
+        lastText = null;
+    }
+
+    //
+    // The command items and a trie over their lower cased names are
+    // built once and shared, each node of the trie has the items that
+    // start with the node's prefix. Commands are only ever registered,
+    // so the number of commands tells if the index is stale.
+    //
+
+    private static final class Node
+    {
+        private Map<Character, Node> kids;
+        final List<CommandNameItem> items = new ArrayList<CommandNameItem>();
 
-        query.add(new CommandNameItem(
-            new ColonCommandItem("", "", null, EnumSet.of(CcFlag.NO_ARGS))));
-        for(ColonCommandItem cci : ColonCommands.getList()) {
-            if(!cci.getFlags().contains(CcFlag.HIDE))
-                query.add(new CommandNameItem(cci));
+        Node kid(char c)
+        {
+            return kids == null ? null : kids.get(c);
+        }
+
+        Node addKid(char c)
+        {
+            if(kids == null)
+                kids = new HashMap<Character, Node>(4);
+            Node n = kids.get(c);
+            if(n == null) {
+                n = new Node();
+                kids.put(c, n);
+            }
+            return n;
         }
     }
 
-    private void filterResult(CompletionResultSet resultSet, String tag)
+    private static final class Index
     {
-        String dbsString = "";
-        try {
-            Document doc = jtc.getDocument();
-            String text = doc.getText(0, doc.getLength());
-            if (dbgCompl.getBoolean())
-                dbsString = tag + ": \'" + jtc() + "\'";
-            int off = 0;
-            int caretOffset = text.length();
-            if(text.trim().isEmpty())
-                off = caretOffset;
-            else {
-                ColonEvent ce = ColonCommands.parseCommandNoExec(text);
-                off = ce != null ? ce.getIndexInputCommandName() : -1;
+        final int generation;
+        final List<CommandNameItem> items;
+        final Node root = new Node();
+
+        Index(int generation, List<CommandNameItem> items)
+        {
+            this.generation = generation;
+            this.items = Collections.unmodifiableList(items);
+            for(CommandNameItem item : items) {
+                Node n = root;
+                n.items.add(item);
+                String name = item.getName().toLowerCase();
+                for(int i = 0; i < name.length(); i++) {
+                    n = n.addKid(name.charAt(i));
+                    n.items.add(item);
+                }
+            }
+        }
+    }
+
+    private static Index index;
+
+    private static synchronized Index getIndex()
+    {
+        List<ColonCommandItem> l = ColonCommands.getList();
+        if(index == null || index.generation != l.size()) {
+            List<CommandNameItem> items = new ArrayList<CommandNameItem>();
+            items.add(new CommandNameItem(
+                new ColonCommandItem("", "", null, EnumSet.of(CcFlag.NO_ARGS))));
+            for(ColonCommandItem cci : l) {
+                if(!cci.getFlags().contains(CcFlag.HIDE))
+                    items.add(new CommandNameItem(cci));
             }
-            if(off >= 0) {
-                startOffset = off;
-                String filter = text.substring(off, caretOffset);
-                if (dbgCompl.getBoolean())
-                    dbsString += ", filter \'" + filter + "\'";
-                resultSet.setAnchorOffset(off);
-                for (CommandNameItem item : query) {
-                    String checkItem = item.getName();
-                    if (filter.regionMatches(true, 0,
-                                             item.getName(), 0,
-                                             filter.length())) {
-                        resultSet.addItem(item);
-                    }
+            index = new Index(l.size(), items);
+        }
+        return index;
+    }
+
+    /**
+     * @return the offset of the command name in text, -1 if none.
+     * If only name characters were typed since last time,
+     * the command name has not moved and the text isn't parsed.
+     */
+    private int findCommandName(String text)
+    {
+        if(text.trim().isEmpty())
+            return text.length();
+        if(lastOff >= 0 && lastText != null && !lastText.trim().isEmpty()
+                && text.startsWith(lastText)) {
+            boolean nameChars = true;
+            for(int i = lastText.length(); i < text.length(); i++) {
+                if(!Character.isLetter(text.charAt(i))) {
+                    nameChars = false;
+                    break;
                 }
             }
-        } catch (BadLocationException ex) {
+            if(nameChars)
+                return lastOff;
+        }
+        ColonEvent ce = ColonCommands.parseCommandNoExec(text);
+        return ce != null ? ce.getIndexInputCommandName() : -1;
+    }
+
+    /**
+     * @return the trie node for the filter; narrowed from the last
+     * filter's node when the filter was extended.
+     */
+    private Node findNode(Index idx, String filter)
+    {
+        Node n;
+        int i;
+        if(lastNode != null && lastGeneration == idx.generation
+                && filter.startsWith(lastFilter)) {
+            n = lastNode;
+            i = lastFilter.length();
+        } else {
+            n = idx.root;
+            i = 0;
+        }
+        for(; n != null && i < filter.length(); i++) {
+            n = n.kid(Character.toLowerCase(filter.charAt(i)));
+        }
+        lastFilter = filter;
+        lastNode = n;
+        lastGeneration = idx.generation;
+        return n;
+    }
+
+    /** runs on the worker, with a snapshot of the command line */
+    private void filterResult(CompletionResultSet resultSet, String text,
+                              Snapshot snapshot, CcCompletion.Query q,
+                              String tag)
+    {
+        String dbsString = "";
+        if (dbgCompl.getBoolean())
+            dbsString = tag + ": \'" + text + "\'";
+        if(snapshot.reset) {
+            lastFilter = null;
+            lastNode = null;
+        }
+        int caretOffset = text.length();
+        int off = snapshot.off;
+        Node n = null;
+        if(off >= 0) {
+            String filter = text.substring(off, caretOffset);
+            if (dbgCompl.getBoolean())
+                dbsString += ", filter \'" + filter + "\'";
+            n = findNode(snapshot.idx, filter);
+        }
+        if(q.isStale()) {
+            if (dbgCompl.getBoolean())
+                dbgCompl.println(dbsString + ", STALE");
+            resultSet.finish();
+            return;
+        }
+        if(off >= 0) {
+            resultSet.setAnchorOffset(off);
+            if(n != null)
+                resultSet.addAllItems(n.items);
         }
         if (dbgCompl.getBoolean()) {
             dbsString += ", result: " + resultSet;
@@ -163,10 +335,10 @@ public class CommandNameTask implements CompletionTask
         resultSet.finish();
     }
 
-    private Color abrevColor = Color.green.darker().darker();
-    private Color debugColor = Color.red.darker().darker();
-    private Color disabledColor = Color.gray; //dark 0xC0, light 0x40
-    private String ColorString(Color c, String s)
+    private static Color abrevColor = Color.green.darker().darker();
+    private static Color debugColor = Color.red.darker().darker();
+    private static Color disabledColor = Color.gray; //dark 0xC0, light 0x40
+    private static String ColorString(Color c, String s)
     {
         if(true)
             return String.format("<font color=\"#%06x\">%s</font>",
@@ -175,18 +347,35 @@ public class CommandNameTask implements CompletionTask
             return s;
     }
 
-    private class CommandNameItem implements CompletionItem
+    private static class CommandNameItem implements CompletionItem
     {
         final private ColonCommandItem command;
-        final private String nameLabel;
+        private String nameLabel;
+        private boolean labelEnabled;
 
         public CommandNameItem(ColonCommandItem command)
         {
             this.command = command;
             if (dbgCompl.getBoolean(Level.FINE))
                 dbgCompl.println(Level.FINE, "CommandNameItem: \'" + getName() + "\'");
+        }
+
+        /** The label depends on whether the command is enabled. */
+        private String getLabel()
+        {
+            boolean enabled = command.isEnabled();
+            if(nameLabel == null || enabled != labelEnabled) {
+                nameLabel = buildLabel(enabled);
+                labelEnabled = enabled;
+            }
+            return nameLabel;
+        }
+
+        private String buildLabel(boolean enabled)
+        {
+            String nameLabel;
             XMLUtil x = XMLUtil.get();
-            if(command.isEnabled()) {
+            if(enabled) {
                 nameLabel =
                 "<html>"
                 + (command.getFlags().contains(CcFlag.DEPRECATED) ? "<s>" : "")
@@ -211,6 +400,7 @@ public class CommandNameTask implements CompletionTask
                 + (command.getFlags().contains(CcFlag.NO_ARGS) ? "" : " ...")
                 + "</html>";
             }
+            return nameLabel;
         }
 
         /**
@@ -252,6 +442,10 @@ public class CommandNameTask implements CompletionTask
 
         private void doSubstitute(JTextComponent jtc)
         {
+            Object o = jtc.getClientProperty(PROP_START_OFFSET);
+            if(!(o instanceof Integer))
+                return;
+            int startOffset = (Integer)o;
             Document doc = jtc.getDocument();
             int caretOffset = doc.getLength(); // clear to end of line
             String value = getName();
@@ -294,7 +488,7 @@ public class CommandNameTask implements CompletionTask
         @Override
         public int getPreferredWidth(Graphics g, Font font)
         {
-            return CompletionUtilities.getPreferredWidth(nameLabel, null,
+            return CompletionUtilities.getPreferredWidth(getLabel(), null,
                                                          g, font);
         }
 
@@ -308,7 +502,7 @@ public class CommandNameTask implements CompletionTask
                         selected);
             Graphics2D g2 = (Graphics2D)g;
             CompletionUtilities.renderHtml(
-                    null, nameLabel, null,
+                    null, getLabel(), null,
                     g,
                     defaultFont,
                     defaultColor,
@@ -48,6 +48,14 @@ import java.awt.Color;
 import java.awt.Font;
 import java.awt.FontMetrics;
 import java.awt.Graphics;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.font.FontRenderContext;
+import java.awt.geom.AffineTransform;
+import java.awt.image.BufferedImage;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 import javax.swing.ImageIcon;
 
@@ -60,6 +68,8 @@ import org.openide.awt.HtmlRenderer;
  * From org.netbeans.spi.editor.completion.support.CompletionUtilities
  * to make icon width a param. Can't use PatchedHtmlRenderer, just use the
  * normal one and ignore selected param. It's up to caller to make things right.
+ * <p/>
+ * Measured widths and painted text are cached.
  *
  * @author Miloslav Metelka
  * @version 1.00
@@ -97,6 +107,191 @@ public final class CompletionUtilities {
         // no instances
     }
 
+    //
+    // The completion popup measures and paints every visible item on
+    // every repaint, each of those parses the html. Keep the measured
+    // widths, and keep the painted text as an image to draw. Both are
+    // small LRU caches, the images are bounded by their size in bytes.
+    //
+
+    /** max number of measured widths kept */
+    private static final int WIDTH_CACHE_SIZE = 2048;
+    /** max bytes of text images kept */
+    private static final int STRIP_CACHE_BYTES = 16 * 1024 * 1024;
+    /** larger text is painted directly */
+    private static final int MAX_STRIP_PIXELS = 2000 * 64;
+
+    private static final class Key {
+        final String html;
+        final Font font;
+        final FontRenderContext frc;
+        final Color color;
+        final double scale;
+
+        Key(String html, Font font, FontRenderContext frc,
+            Color color, double scale) {
+            this.html = html;
+            this.font = font;
+            this.frc = frc;
+            this.color = color;
+            this.scale = scale;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if(!(obj instanceof Key))
+                return false;
+            Key o = (Key)obj;
+            return html.equals(o.html) && font.equals(o.font)
+                    && (frc == null ? o.frc == null : frc.equals(o.frc))
+                    && (color == null ? o.color == null : color.equals(o.color))
+                    && scale == o.scale;
+        }
+
+        @Override
+        public int hashCode() {
+            int hash = html.hashCode();
+            hash = 31 * hash + font.hashCode();
+            hash = 31 * hash + (frc != null ? frc.hashCode() : 0);
+            hash = 31 * hash + (color != null ? color.hashCode() : 0);
+            return hash;
+        }
+    }
+
+    /**
+     * Bounded by the total weight of the values, an entry weighs 1
+     * unless weight is overridden.
+     */
+    private static class LruCache<V> extends LinkedHashMap<Key, V> {
+        private final long max;
+        private long total;
+
+        LruCache(long max) {
+            super(64, .75f, true);
+            this.max = max;
+        }
+
+        protected long weight(V v) {
+            return 1;
+        }
+
+        @Override
+        public V put(Key key, V value) {
+            V old = super.put(key, value);
+            if(old != null)
+                total -= weight(old);
+            total += weight(value);
+            // the entry just put is the newest, it stays
+            Iterator<V> it = values().iterator();
+            while(total > max && size() > 1) {
+                total -= weight(it.next());
+                it.remove();
+            }
+            return old;
+        }
+    }
+
+    private static final Map<Key, Integer> widths
+            = new LruCache<Integer>(WIDTH_CACHE_SIZE);
+    private static final Map<Key, BufferedImage> strips
+            = new LruCache<BufferedImage>(STRIP_CACHE_BYTES) {
+                @Override
+                protected long weight(BufferedImage img) {
+                    // TYPE_INT_ARGB
+                    return (long)img.getWidth() * img.getHeight() * 4;
+                }
+            };
+
+    private static FontRenderContext getFrc(Graphics g) {
+        return g instanceof Graphics2D
+                ? ((Graphics2D)g).getFontRenderContext() : null;
+    }
+
+    /** @return the width of the html text, measured once */
+    private static int getHtmlWidth(String html, Graphics g, Font font) {
+        Key key = new Key(html, font, getFrc(g), null, 1);
+        synchronized(widths) {
+            Integer w = widths.get(key);
+            if(w != null)
+                return w;
+        }
+        int w = (int)HtmlRenderer.renderHTML(html, g, 0, 0, Integer.MAX_VALUE, 0,
+                font, Color.black, HtmlRenderer.STYLE_CLIP, false);
+        synchronized(widths) {
+            widths.put(key, w);
+        }
+        return w;
+    }
+
+    /**
+     * Paint the html text with its baseline at y, from an image
+     * of the text if possible.
+     */
+    private static void paintHtml(String html, Graphics g, int x, int y,
+                                  int textWidth, Font font, Color color) {
+        BufferedImage img = getStrip(html, g, textWidth, font, color);
+        if(img == null) {
+            HtmlRenderer.renderHTML(html, g, x, y, textWidth, y,
+                font, color, HtmlRenderer.STYLE_CLIP, true);
+            return;
+        }
+        FontMetrics fm = g.getFontMetrics(font);
+        double scale = ((Graphics2D)g).getTransform().getScaleX();
+        g.drawImage(img, x, y - fm.getAscent(),
+                    (int)Math.round(img.getWidth() / scale),
+                    (int)Math.round(img.getHeight() / scale), null);
+    }
+
+    /**
+     * @return an image of the text, null if the text should be painted
+     * directly. Sub pixel text can not be painted into an image,
+     * nor can rotated or sheared text.
+     */
+    private static BufferedImage getStrip(String html, Graphics g,
+                                          int textWidth,
+                                          Font font, Color color) {
+        if(!(g instanceof Graphics2D))
+            return null;
+        Graphics2D g2 = (Graphics2D)g;
+        Object aa = g2.getRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING);
+        if(aa != null && aa != RenderingHints.VALUE_TEXT_ANTIALIAS_ON
+                && aa != RenderingHints.VALUE_TEXT_ANTIALIAS_OFF
+                && aa != RenderingHints.VALUE_TEXT_ANTIALIAS_DEFAULT
+                && aa != RenderingHints.VALUE_TEXT_ANTIALIAS_GASP)
+            return null;
+        AffineTransform t = g2.getTransform();
+        double scale = t.getScaleX();
+        if(t.getShearX() != 0 || t.getShearY() != 0
+                || scale != t.getScaleY() || scale <= 0)
+            return null;
+        Key key = new Key(html, font, g2.getFontRenderContext(), color, scale);
+        synchronized(strips) {
+            BufferedImage img = strips.get(key);
+            if(img != null)
+                return img;
+        }
+        FontMetrics fm = g.getFontMetrics(font);
+        int w = (int)Math.ceil((textWidth + 1) * scale);
+        int h = (int)Math.ceil(fm.getHeight() * scale);
+        if(w <= 0 || h <= 0 || w * h > MAX_STRIP_PIXELS)
+            return null;
+        BufferedImage img = new BufferedImage(w, h, BufferedImage.TYPE_INT_ARGB);
+        Graphics2D ig = img.createGraphics();
+        try {
+            ig.setRenderingHints(g2.getRenderingHints());
+            ig.scale(scale, scale);
+            HtmlRenderer.renderHTML(html, ig, 0, fm.getAscent(),
+                    textWidth + 1, fm.getAscent(),
+                    font, color, HtmlRenderer.STYLE_CLIP, true);
+        } finally {
+            ig.dispose();
+        }
+        synchronized(strips) {
+            strips.put(key, img);
+        }
+        return img;
+    }
+
     /**
      * Get preferred width of the item by knowing its left and right html texts.
      * <br/>
@@ -113,15 +308,13 @@ public final class CompletionUtilities {
     Graphics g, Font defaultFont, int width) {
         width += BEFORE_ICON_GAP + AFTER_ICON_GAP + AFTER_RIGHT_TEXT_GAP;
         if (leftHtmlText != null && leftHtmlText.length() > 0) {
-            width += (int)HtmlRenderer.renderHTML(leftHtmlText, g, 0, 0, Integer.MAX_VALUE, 0,
-                    defaultFont, Color.black, HtmlRenderer.STYLE_CLIP, false);
+            width += getHtmlWidth(leftHtmlText, g, defaultFont);
         }
         if (rightHtmlText != null && rightHtmlText.length() > 0) {
             if (leftHtmlText != null) {
                 width += BEFORE_RIGHT_TEXT_GAP;
             }
-            width += (int)HtmlRenderer.renderHTML(rightHtmlText, g, 0, 0, Integer.MAX_VALUE, 0,
-                    defaultFont, Color.black, HtmlRenderer.STYLE_CLIP, false);
+            width += getHtmlWidth(rightHtmlText, g, defaultFont);
         }
         return width;
     }
@@ -177,19 +370,25 @@ public final class CompletionUtilities {
         FontMetrics fm = g.getFontMetrics(defaultFont);
         int textY = (height - fm.getHeight())/2 + fm.getHeight() - fm.getDescent();
         if (rightHtmlText != null && rightHtmlText.length() > 0) {
-            int rightTextWidth = (int)HtmlRenderer.renderHTML(rightHtmlText, g, 0, 0, Integer.MAX_VALUE, 0,
-                    defaultFont, defaultColor, HtmlRenderer.STYLE_CLIP, false);
+            int rightTextWidth = getHtmlWidth(rightHtmlText, g, defaultFont);
             rightTextX = Math.max(iconWidth, rightTextX - rightTextWidth);
             // Render right text
-            HtmlRenderer.renderHTML(rightHtmlText, g, rightTextX, textY, rightTextWidth, textY,
-                defaultFont, defaultColor, HtmlRenderer.STYLE_CLIP, true);
+            paintHtml(rightHtmlText, g, rightTextX, textY, rightTextWidth,
+                      defaultFont, defaultColor);
             rightTextX = Math.max(iconWidth, rightTextX - BEFORE_RIGHT_TEXT_GAP);
         }
 
         // Render left text
         if (leftHtmlText != null && leftHtmlText.length() > 0 && rightTextX > iconWidth) { // any space for left text?
-            HtmlRenderer.renderHTML(leftHtmlText, g, iconWidth, textY, rightTextX - iconWidth, textY,
-                defaultFont, defaultColor, HtmlRenderer.STYLE_TRUNCATE, true);
+            int leftTextWidth = getHtmlWidth(leftHtmlText, g, defaultFont);
+            if (leftTextWidth <= rightTextX - iconWidth) {
+                // it fits, nothing to truncate
+                paintHtml(leftHtmlText, g, iconWidth, textY, leftTextWidth,
+                          defaultFont, defaultColor);
+            } else {
+                HtmlRenderer.renderHTML(leftHtmlText, g, iconWidth, textY, rightTextX - iconWidth, textY,
+                    defaultFont, defaultColor, HtmlRenderer.STYLE_TRUNCATE, true);
+            }
         }
     }
     
@@ -24,13 +24,20 @@ import java.awt.Color;
 import java.awt.Font;
 import java.awt.Graphics;
 import java.awt.Graphics2D;
+import java.awt.Image;
 import java.awt.event.ActionEvent;
 import java.awt.event.KeyEvent;
 import java.awt.font.TextAttribute;
+import java.beans.PropertyChangeEvent;
+import java.beans.PropertyChangeListener;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
 import java.util.logging.Level;
 
 import javax.swing.Action;
@@ -46,6 +53,7 @@ import org.netbeans.spi.editor.completion.CompletionItem;
 import org.netbeans.spi.editor.completion.CompletionResultSet;
 import org.netbeans.spi.editor.completion.CompletionTask;
 import org.openide.ErrorManager;
+import org.openide.loaders.DataObject;
 import org.openide.windows.TopComponent;
 
 import com.raelity.jvi.ViAppView;
@@ -57,6 +65,10 @@ import com.raelity.jvi.swing.CommandLine;
 
 /**
  * Filename completion for ":e#" command.
+ * The filter matches the window number by prefix, or the file name as
+ * a subsequence with the best matches first, see {@link FuzzyMatcher}.
+ * The app views are looked at on the EDT, the filter is matched on a
+ * worker, see {@link CcCompletion.Query}.
  * 
  * @author Ernie Rael <err at raelity.com>
  */
@@ -68,14 +80,15 @@ public class EditAlternateTask implements CompletionTask
     private static final int ITEM_MODIFIED = 4;  // out of sync with VCS
     private static final int ITEM_NEW = 8;       // not yet in VCS
 
-    List<EditAlternateItem> query = new ArrayList<EditAlternateItem>();
+    /** on the EDT */
+    List<Candidate> query;
+    private final CcCompletion.Query cq = CcCompletion.Query.create();
 
     // follow shared by CompletionItem
     JTextComponent jtc;
     private Font ciDefaultFont;
     private Font ciDirtyFont;
     private int ciMaxIconWidth;
-    private int ciTextOffset;
 
     public EditAlternateTask(JTextComponent jtc)
     {
@@ -90,15 +103,16 @@ public class EditAlternateTask implements CompletionTask
         return filter.length() > 0 && Character.isDigit(filter.charAt(0));
     }
 
+    private static boolean isAlternateFileCompletion(String text)
+    {
+        return !text.trim().isEmpty()
+                && CcCompletion.isAlternateFileCompletion(text);
+    }
+
     @Override
     public void query(CompletionResultSet resultSet)
     {
-        if(!CcCompletion.isAlternateFileCompletion(jtc.getDocument())) {
-            resultSet.finish();
-            return;
-        }
-        buildQueryResult();
-        filterResult(resultSet, "QUERY EA");
+        cq.post(jtc, resultSet, new Work(true, "QUERY EA"));
     }
 
     @Override
@@ -109,13 +123,7 @@ public class EditAlternateTask implements CompletionTask
                 dbgCompl.println("REFRESH EA with null resultSet " + jtc());
             return;
         }
-        if(!CcCompletion.isAlternateFileCompletion(jtc.getDocument())) {
-            resultSet.finish();
-            return;
-        }
-        if(query == null)
-            buildQueryResult();
-        filterResult(resultSet, "REFRESH EA");
+        cq.post(jtc, resultSet, new Work(false, "REFRESH EA"));
     }
 
     @Override
@@ -123,76 +131,263 @@ public class EditAlternateTask implements CompletionTask
     {
         if (dbgCompl.getBoolean())
             dbgCompl.println("CANCEL EA: " + jtc());
+        cq.cancel();
         Completion.get().hideAll();
         // drop the fonts
     }
 
+    /** The snapshot is the candidates, built on the EDT. */
+    private class Work implements CcCompletion.QueryWork<List<Candidate>>
+    {
+        private final boolean rebuild;
+        private final String tag;
+
+        Work(boolean rebuild, String tag)
+        {
+            this.rebuild = rebuild;
+            this.tag = tag;
+        }
+
+        @Override
+        public List<Candidate> snapshot(String text)
+        {
+            if(!isAlternateFileCompletion(text))
+                return null;
+            if(rebuild || query == null)
+                buildQueryResult();
+            return query;
+        }
+
+        @Override
+        public void run(CompletionResultSet resultSet, String text,
+                        List<Candidate> candidates, CcCompletion.Query q)
+        {
+            filterResult(resultSet, text, candidates, q, tag);
+        }
+    }
+
+    /** An app view that may be completed, what the items are made from. */
+    private static final class Candidate
+    {
+        final ViewInfo info;
+        final String num;
+        final int flags;
+
+        Candidate(ViewInfo info, String num, int flags)
+        {
+            this.info = info;
+            this.num = num;
+            this.flags = flags;
+        }
+    }
+
+    /** on the EDT */
     private void buildQueryResult()
     {
+        long t0 = System.nanoTime();
+        List<Candidate> l = new ArrayList<Candidate>();
+        TopComponent activated = TopComponent.getRegistry().getActivated();
         for (ViAppView _av : AppViews.getList(AppViews.ACTIVE)) {
             NbAppView av = (NbAppView)_av;
             TopComponent tc = av.getTopComponent();
-            int wnum = av.getWNum();
+            ViewInfo info = getViewInfo(av, tc);
             int flags = 0;
-            if (TopComponent.getRegistry().getActivated() == tc)
+            if (activated == tc)
                 flags |= ITEM_ACTIVE;
-            ImageIcon icon =
-                    tc.getIcon() != null ? new ImageIcon(tc.getIcon()) : null;
+            if (info.dirty)
+                flags |= ITEM_DIRTY;
+            if(info.icon != null && info.icon.getIconWidth() > ciMaxIconWidth)
+                ciMaxIconWidth = info.icon.getIconWidth();
+            l.add(new Candidate(info, String.format("%02d", av.getWNum()),
+                                flags));
+        }
+        query = Collections.unmodifiableList(l);
+        if (dbgCompl.getBoolean())
+            dbgCompl.println(String.format("BUILD EA: %d views %.3f ms",
+                                           query.size(),
+                                           (System.nanoTime() - t0) / 1e6));
+    }
+
+    //
+    // What an item shows for an app view is kept until the view's
+    // DataObject changes (modified, renamed, moved) or its TopComponent
+    // is closed. The icon is kept while the TopComponent has the same image.
+    //
+
+    private static final class ViewInfo
+    {
+        final Document doc;
+        final DataObject dobj;
+        final String name;
+        final char[] chars;
+        final char[] lower;
+        final boolean dirty;
+        final Image image;
+        final ImageIcon icon;
+
+        ViewInfo(Document doc, DataObject dobj, String name, boolean dirty,
+                 Image image, ImageIcon icon)
+        {
+            this.doc = doc;
+            this.dobj = dobj;
+            this.name = name;
+            this.chars = name.toCharArray();
+            this.lower = FuzzyMatcher.lower(name);
+            this.dirty = dirty;
+            this.image = image;
+            this.icon = icon;
+        }
+    }
+
+    private static final Map<NbAppView, ViewInfo> viewInfos
+            = new WeakHashMap<NbAppView, ViewInfo>();
+    private static final Set<DataObject> listenedDobjs
+            = Collections.newSetFromMap(new WeakHashMap<DataObject, Boolean>());
+    private static boolean listeningRegistry;
+
+    private static final PropertyChangeListener dobjListener
+            = new PropertyChangeListener() {
+        @Override
+        public void propertyChange(PropertyChangeEvent evt)
+        {
+            String prop = evt.getPropertyName();
+            if(DataObject.PROP_MODIFIED.equals(prop)
+                    || DataObject.PROP_NAME.equals(prop)
+                    || DataObject.PROP_PRIMARY_FILE.equals(prop)
+                    || DataObject.PROP_VALID.equals(prop)) {
+                Object dobj = evt.getSource();
+                synchronized(viewInfos) {
+                    for(Iterator<ViewInfo> it = viewInfos.values().iterator();
+                            it.hasNext();) {
+                        if(it.next().dobj == dobj)
+                            it.remove();
+                    }
+                }
+            }
+        }
+    };
+
+    private static final PropertyChangeListener registryListener
+            = new PropertyChangeListener() {
+        @Override
+        public void propertyChange(PropertyChangeEvent evt)
+        {
+            if(TopComponent.Registry.PROP_TC_CLOSED
+                    .equals(evt.getPropertyName())) {
+                Object tc = evt.getNewValue();
+                synchronized(viewInfos) {
+                    for(Iterator<NbAppView> it = viewInfos.keySet().iterator();
+                            it.hasNext();) {
+                        if(it.next().getTopComponent() == tc)
+                            it.remove();
+                    }
+                }
+            }
+        }
+    };
+
+    private static ViewInfo getViewInfo(NbAppView av, TopComponent tc)
+    {
+        Document doc = av.getEditor() != null
+                       ? av.getEditor().getDocument() : null;
+        Image image = tc.getIcon();
+        ViewInfo info;
+        synchronized(viewInfos) {
+            if(!listeningRegistry) {
+                TopComponent.getRegistry().addPropertyChangeListener(
+                        registryListener);
+                listeningRegistry = true;
+            }
+            info = viewInfos.get(av);
+        }
+        if(info != null && info.doc == doc && doc != null) {
+            if(info.image == image)
+                return info;
+            // only the icon changed
+            info = new ViewInfo(doc, info.dobj, info.name, info.dirty,
+                                image, createIcon(image));
+        } else {
             String name = null;
-            if(av.getEditor() != null) {
-                Document doc = av.getEditor().getDocument();
-                if (NbEditorUtilities.getDataObject(doc).isModified())
-                    flags |= ITEM_DIRTY;
-                name = NbEditorUtilities.getFileObject(doc).getNameExt();
+            boolean dirty = false;
+            DataObject dobj = null;
+            if(doc != null) {
+                dobj = NbEditorUtilities.getDataObject(doc);
+                if(dobj != null) {
+                    synchronized(viewInfos) {
+                        if(listenedDobjs.add(dobj))
+                            dobj.addPropertyChangeListener(dobjListener);
+                    }
+                    dirty = dobj.isModified();
+                    name = dobj.getPrimaryFile().getNameExt();
+                }
             }
             if (name == null)
                 name = ViManager.getFactory()
                         .getFS().getDisplayFileName(av);
-            query.add(new EditAlternateItem(
-                    name,
-                    String.format("%02d", wnum),
-                    icon, false, flags));
+            info = new ViewInfo(doc, dobj, name, dirty,
+                                image, createIcon(image));
+        }
+        if(doc != null) {
+            synchronized(viewInfos) {
+                viewInfos.put(av, info);
+            }
         }
+        return info;
+    }
+
+    private static ImageIcon createIcon(Image image)
+    {
+        return image != null ? new ImageIcon(image) : null;
     }
 
-    private void filterResult(CompletionResultSet resultSet, String tag)
+    /** runs on the worker, with a snapshot of the command line */
+    private void filterResult(CompletionResultSet resultSet, String text,
+                              List<Candidate> candidates,
+                              CcCompletion.Query q, String tag)
     {
         String dbsString = "";
-        try {
-            Document doc = jtc.getDocument();
-            String text = doc.getText(0, doc.getLength());
-            if (dbgCompl.getBoolean())
-                dbsString = tag + ": \'" + jtc() + "\'";
-            if (CcCompletion.isAlternateFileCompletion(doc)) {
-                ciTextOffset = text.indexOf('#') + 1; // char after 'e#'
-                int startOffset = ciTextOffset;
-                // NEEDSWORK: can't count on the caret position since
-                // this is sometimes called from the event dispatch thread
-                // so just use the entire string. Set the caret to
-                // the end of the string.
-                //int caretOffset = jtc.getCaretPosition();
-                int caretOffset = text.length();
-                // skip white space
-                for (; startOffset < caretOffset; startOffset++) {
-                    if (!Character.isWhitespace(text.charAt(startOffset)))
-                        break;
-                }
-                String filter = text.substring(startOffset, caretOffset);
-                if (dbgCompl.getBoolean())
-                    dbsString += ", filter \'" + filter + "\'";
-                resultSet.setAnchorOffset(startOffset);
-                boolean fFilterDigit = filterDigit(filter);
-                for (EditAlternateItem item : query) {
-                    String checkItem = fFilterDigit ? item.num : item.name;
-                    if (filter.regionMatches(true, 0, checkItem, 0,
-                                             filter.length())) {
-                        item.fFilterDigit = fFilterDigit;
-                        resultSet.addItem(item);
-                    }
-                }
+        if (dbgCompl.getBoolean())
+            dbsString = tag + ": \'" + text + "\'";
+        int textOffset = text.indexOf('#') + 1; // char after 'e#'
+        int startOffset = textOffset;
+        // Working from a snapshot, use the entire string.
+        int caretOffset = text.length();
+        // skip white space
+        for (; startOffset < caretOffset; startOffset++) {
+            if (!Character.isWhitespace(text.charAt(startOffset)))
+                break;
+        }
+        String filter = text.substring(startOffset, caretOffset);
+        if (dbgCompl.getBoolean())
+            dbsString += ", filter \'" + filter + "\'";
+        boolean fFilterDigit = filterDigit(filter);
+        List<EditAlternateItem> matched = new ArrayList<EditAlternateItem>();
+        if (fFilterDigit) {
+            for (Candidate c : candidates) {
+                if (filter.regionMatches(true, 0, c.num, 0, filter.length()))
+                    matched.add(new EditAlternateItem(
+                            c, textOffset, true, 0, false));
+            }
+        } else {
+            // subsequence match, best first by sort priority
+            char[] lowerFilter = FuzzyMatcher.lower(filter);
+            for (Candidate c : candidates) {
+                int score = FuzzyMatcher.score(lowerFilter,
+                                               c.info.chars, c.info.lower);
+                if (score != FuzzyMatcher.NO_MATCH)
+                    matched.add(new EditAlternateItem(
+                            c, textOffset, false, score,
+                            FuzzyMatcher.isPrefix(lowerFilter, c.info.lower)));
             }
-        } catch (BadLocationException ex) {
         }
+        if (q.isStale()) {
+            if (dbgCompl.getBoolean())
+                dbgCompl.println(dbsString + ", STALE");
+            resultSet.finish();
+            return;
+        }
+        resultSet.setAnchorOffset(startOffset);
+        resultSet.addAllItems(matched);
         if (dbgCompl.getBoolean()) {
             dbsString += ", result: " + resultSet;
             dbgCompl.println(dbsString);
@@ -208,26 +403,35 @@ public class EditAlternateTask implements CompletionTask
     private class EditAlternateItem implements CompletionItem
     {
         private static final String modifiedColorCode = "0x0000B2";
-        private ImageIcon icon;
-        private String name;
-        private String nameLabel;
-        private String num;
-        private boolean fFilterDigit;
-        private int flags;
+        private final ImageIcon icon;
+        private final String name;
+        private final char[] lower;
+        private final String nameLabel;
+        private final String num;
+        /** where the window number goes */
+        private final int textOffset;
+        private final boolean fFilterDigit;
+        /** how well the filter matched the name */
+        private final int score;
+        /** the filter matched the start of the name */
+        private final boolean fPrefix;
+        private final int flags;
         private Color myColor;
         private static final String LEFT_ARROW = "\u2190"; //larr ← U+2190
         private Font myFont;
 
-        EditAlternateItem(String name, String num, ImageIcon icon,
-                                boolean fFilterDigit, int flags)
+        EditAlternateItem(Candidate c, int textOffset,
+                          boolean fFilterDigit, int score, boolean fPrefix)
         {
-            this.name = name;
-            this.num = num;
+            this.name = c.info.name;
+            this.lower = c.info.lower;
+            this.num = c.num;
+            this.textOffset = textOffset;
             this.fFilterDigit = fFilterDigit;
-            this.flags = flags;
-            this.icon = icon;
-            if(icon != null && icon.getIconWidth() > ciMaxIconWidth)
-                ciMaxIconWidth = icon.getIconWidth();
+            this.score = score;
+            this.fPrefix = fPrefix;
+            this.flags = c.flags;
+            this.icon = c.info.icon;
 
             // Font color spec'd in html overrides defaultColor.
             // Since using standard CompletionUtilities to work around icon
@@ -308,9 +512,9 @@ public class EditAlternateTask implements CompletionTask
             //String value = name;
             String value = num;
             try {
-                doc.remove(ciTextOffset, caretOffset - ciTextOffset);
-                doc.insertString(ciTextOffset, value, null);
-                jtc.setCaretPosition(ciTextOffset + value.length());
+                doc.remove(textOffset, caretOffset - textOffset);
+                doc.insertString(textOffset, value, null);
+                jtc.setCaretPosition(textOffset + value.length());
             } catch (BadLocationException e) {
                 ErrorManager.getDefault().notify(ErrorManager.INFORMATIONAL, e);
             }
@@ -391,19 +595,21 @@ public class EditAlternateTask implements CompletionTask
         @Override
         public int getSortPriority()
         {
-            return 0;
+            // better match, lower priority value, shown first
+            return FuzzyMatcher.MAX_SCORE - score;
         }
 
         @Override
         public CharSequence getSortText()
         {
-            return fFilterDigit ? num : name.toLowerCase();
+            return fFilterDigit ? num : new String(lower);
         }
 
         @Override
         public CharSequence getInsertPrefix()
         {
-            return fFilterDigit ? "" : name.toLowerCase();
+            // a subsequence match has nothing in common with the filter
+            return fFilterDigit || !fPrefix ? "" : new String(lower);
         }
     }
 
@@ -0,0 +1,368 @@
+/*
+ * The contents of this file are subject to the Mozilla Public
+ * License Version 1.1 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of
+ * the License at http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS
+ * IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * rights and limitations under the License.
+ *
+ * The Original Code is jvi - vi editor clone.
+ *
+ * The Initial Developer of the Original Code is Ernie Rael.
+ * Portions created by Ernie Rael are
+ * Copyright (C) 2011 Ernie Rael.  All Rights Reserved.
+ *
+ * Contributor(s): Ernie Rael <err@raelity.com>
+ */
+
+package org.netbeans.modules.jvi.completion;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.openide.filesystems.FileAttributeEvent;
+import org.openide.filesystems.FileChangeListener;
+import org.openide.filesystems.FileEvent;
+import org.openide.filesystems.FileObject;
+import org.openide.filesystems.FileRenameEvent;
+import org.openide.filesystems.FileUtil;
+import org.openide.util.RequestProcessor;
+
+/**
+ * An in memory index of the files under a directory, for file path
+ * completion. For each folder, by path relative to the root, there's
+ * a sorted array of the names in it; a folder's name ends with '/'.
+ * The index is built in the background and kept up to date with
+ * FileChangeListeners on the folders; a lookup never touches the disk.
+ * <p/>
+ * Folders whose name starts with '.', like ".git", are not indexed.
+ *
+ * @author Ernie Rael <err at raelity.com>
+ */
+final class FilePathIndex
+{
+    private static final Logger LOG
+            = Logger.getLogger(FilePathIndex.class.getName());
+
+    /** the most roots that are indexed, least recently used goes */
+    private static final int MAX_ROOTS = 4;
+    /** stop indexing a root with this many entries */
+    private static final int MAX_ENTRIES = 500000;
+
+    private static final RequestProcessor RP
+            = new RequestProcessor(FilePathIndex.class.getName());
+
+    private static final Map<FileObject, FilePathIndex> indexes
+            = new LinkedHashMap<FileObject, FilePathIndex>(8, .75f, true);
+
+    private final FileObject root;
+    private final Map<String, String[]> dirs
+            = new ConcurrentHashMap<String, String[]>();
+    private final Set<FileObject> listened = new HashSet<FileObject>();
+    private volatile boolean ready;
+    private volatile boolean disposed;
+    private int nEntries;
+
+    /** @return the index for root, it may still be building */
+    static FilePathIndex get(FileObject root)
+    {
+        FilePathIndex idx;
+        FilePathIndex evicted = null;
+        synchronized(indexes) {
+            idx = indexes.get(root);
+            if(idx == null) {
+                idx = new FilePathIndex(root);
+                indexes.put(root, idx);
+                if(indexes.size() > MAX_ROOTS) {
+                    Iterator<FilePathIndex> it = indexes.values().iterator();
+                    evicted = it.next();
+                    it.remove();
+                }
+                idx.start();
+            }
+        }
+        if(evicted != null)
+            evicted.dispose();
+        return idx;
+    }
+
+    private FilePathIndex(FileObject root)
+    {
+        this.root = root;
+    }
+
+    FileObject getRoot()
+    {
+        return root;
+    }
+
+    /** @return false while the first indexing is in progress */
+    boolean isReady()
+    {
+        return ready;
+    }
+
+    /**
+     * @param dir folder path relative to root, "" or ends with '/'
+     * @param prefix case insensitive prefix of the names
+     * @param max at most this many names
+     * @return the names in dir that start with prefix, folders end with '/'
+     */
+    List<String> lookup(String dir, String prefix, int max)
+    {
+        List<String> result = new ArrayList<String>();
+        String[] names = dirs.get(dir);
+        if(names == null)
+            return result;
+        int i = Arrays.binarySearch(names, prefix,
+                                    String.CASE_INSENSITIVE_ORDER);
+        if(i < 0)
+            i = -i - 1;
+        // binarySearch may land in the middle of names equal ignoring case
+        while(i > 0 && String.CASE_INSENSITIVE_ORDER
+                        .compare(names[i - 1], prefix) >= 0)
+            i--;
+        for(; i < names.length && result.size() < max; i++) {
+            if(!names[i].regionMatches(true, 0, prefix, 0, prefix.length()))
+                break;
+            result.add(names[i]);
+        }
+        return result;
+    }
+
+    private void start()
+    {
+        RP.post(new Runnable() {
+            @Override
+            public void run()
+            {
+                long t0 = System.currentTimeMillis();
+                indexTree(root);
+                ready = true;
+                LOG.log(Level.FINE, "indexed {0}: {1} entries, {2} ms",
+                        new Object[] {root, nEntries,
+                                      System.currentTimeMillis() - t0});
+            }
+        });
+    }
+
+    private void dispose()
+    {
+        disposed = true;
+        RP.post(new Runnable() {
+            @Override
+            public void run()
+            {
+                synchronized(listened) {
+                    for(FileObject fo : listened) {
+                        fo.removeFileChangeListener(listener);
+                    }
+                    listened.clear();
+                }
+                dirs.clear();
+            }
+        });
+    }
+
+    private String relDir(FileObject folder)
+    {
+        String rel = FileUtil.getRelativePath(root, folder);
+        if(rel == null)
+            return null;
+        return rel.isEmpty() ? rel : rel + "/";
+    }
+
+    private static boolean skip(FileObject fo)
+    {
+        return fo.getNameExt().startsWith(".");
+    }
+
+    private static String entryName(FileObject fo)
+    {
+        return fo.isFolder() ? fo.getNameExt() + "/" : fo.getNameExt();
+    }
+
+    /** index folder and everything under it; only on RP */
+    private void indexTree(FileObject folder)
+    {
+        LinkedList<FileObject> todo = new LinkedList<FileObject>();
+        todo.add(folder);
+        while(!todo.isEmpty() && !disposed) {
+            FileObject dir = todo.removeFirst();
+            String rel = relDir(dir);
+            if(rel == null)
+                continue;
+            synchronized(listened) {
+                // a folder's listener also hears about the folder itself
+                if(listened.add(dir))
+                    dir.addFileChangeListener(listener);
+            }
+            List<String> names = new ArrayList<String>();
+            for(FileObject kid : dir.getChildren()) {
+                if(skip(kid))
+                    continue;
+                names.add(entryName(kid));
+                if(kid.isFolder() && nEntries < MAX_ENTRIES)
+                    todo.add(kid);
+            }
+            nEntries += names.size();
+            String[] a = names.toArray(new String[names.size()]);
+            Arrays.sort(a, String.CASE_INSENSITIVE_ORDER);
+            dirs.put(rel, a);
+        }
+    }
+
+    /** drop folder and everything under it; only on RP */
+    private void removeTree(String rel)
+    {
+        for(Iterator<String> it = dirs.keySet().iterator(); it.hasNext();) {
+            if(it.next().startsWith(rel))
+                it.remove();
+        }
+    }
+
+    /**
+     * Stop listening to a deleted folder, and to the folders under it;
+     * nothing to do for a file. Only on RP.
+     */
+    private void forgetDeleted(FileObject deleted)
+    {
+        synchronized(listened) {
+            if(!listened.remove(deleted))
+                return;
+            deleted.removeFileChangeListener(listener);
+            for(Iterator<FileObject> it = listened.iterator(); it.hasNext();) {
+                FileObject fo = it.next();
+                if(!fo.isValid()) {
+                    fo.removeFileChangeListener(listener);
+                    it.remove();
+                }
+            }
+        }
+    }
+
+    /** change a folder's names; only on RP */
+    private void changeName(FileObject parent, String remove, String add)
+    {
+        String rel = relDir(parent);
+        String[] names = rel == null ? null : dirs.get(rel);
+        if(names == null)
+            return;
+        List<String> l = new ArrayList<String>(Arrays.asList(names));
+        if(remove != null)
+            l.remove(remove);
+        if(add != null && !l.contains(add))
+            l.add(add);
+        String[] a = l.toArray(new String[l.size()]);
+        Arrays.sort(a, String.CASE_INSENSITIVE_ORDER);
+        dirs.put(rel, a);
+    }
+
+    private void post(Runnable r)
+    {
+        if(!disposed)
+            RP.post(r);
+    }
+
+    private final FileChangeListener listener = new FileChangeListener() {
+        @Override
+        public void fileFolderCreated(final FileEvent fe)
+        {
+            post(new Runnable() {
+                @Override
+                public void run()
+                {
+                    FileObject fo = fe.getFile();
+                    if(skip(fo))
+                        return;
+                    changeName(fo.getParent(), null, entryName(fo));
+                    indexTree(fo);
+                }
+            });
+        }
+
+        @Override
+        public void fileDataCreated(final FileEvent fe)
+        {
+            post(new Runnable() {
+                @Override
+                public void run()
+                {
+                    FileObject fo = fe.getFile();
+                    if(!skip(fo))
+                        changeName(fo.getParent(), null, entryName(fo));
+                }
+            });
+        }
+
+        @Override
+        public void fileDeleted(final FileEvent fe)
+        {
+            post(new Runnable() {
+                @Override
+                public void run()
+                {
+                    FileObject fo = fe.getFile();
+                    FileObject parent = fo.getParent();
+                    String name = fo.getNameExt();
+                    // a deleted file doesn't know if it was a folder
+                    changeName(parent, name, null);
+                    changeName(parent, name + "/", null);
+                    String rel = relDir(parent);
+                    if(rel != null)
+                        removeTree(rel + name + "/");
+                    forgetDeleted(fo);
+                }
+            });
+        }
+
+        @Override
+        public void fileRenamed(final FileRenameEvent fe)
+        {
+            post(new Runnable() {
+                @Override
+                public void run()
+                {
+                    FileObject fo = fe.getFile();
+                    FileObject parent = fo.getParent();
+                    String old = fe.getExt().isEmpty()
+                                 ? fe.getName() : fe.getName() + "." + fe.getExt();
+                    if(fo.isFolder()) {
+                        changeName(parent, old + "/",
+                                   skip(fo) ? null : entryName(fo));
+                        String rel = relDir(parent);
+                        if(rel != null)
+                            removeTree(rel + old + "/");
+                        if(!skip(fo))
+                            indexTree(fo);
+                    } else
+                        changeName(parent, old,
+                                   skip(fo) ? null : entryName(fo));
+                }
+            });
+        }
+
+        @Override
+        public void fileChanged(FileEvent fe)
+        {
+        }
+
+        @Override
+        public void fileAttributeChanged(FileAttributeEvent fe)
+        {
+        }
+    };
+}
@@ -0,0 +1,358 @@
+/*
+ * The contents of this file are subject to the Mozilla Public
+ * License Version 1.1 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of
+ * the License at http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS
+ * IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * rights and limitations under the License.
+ *
+ * The Original Code is jvi - vi editor clone.
+ *
+ * The Initial Developer of the Original Code is Ernie Rael.
+ * Portions created by Ernie Rael are
+ * Copyright (C) 2011 Ernie Rael.  All Rights Reserved.
+ *
+ * Contributor(s): Ernie Rael <err@raelity.com>
+ */
+
+package org.netbeans.modules.jvi.completion;
+
+import java.awt.Color;
+import java.awt.Font;
+import java.awt.Graphics;
+import java.awt.event.ActionEvent;
+import java.awt.event.KeyEvent;
+import java.io.File;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.logging.Level;
+
+import javax.swing.Action;
+import javax.swing.text.BadLocationException;
+import javax.swing.text.Document;
+import javax.swing.text.JTextComponent;
+
+import org.netbeans.api.editor.completion.Completion;
+import org.netbeans.api.project.FileOwnerQuery;
+import org.netbeans.api.project.Project;
+import org.netbeans.spi.editor.completion.CompletionItem;
+import org.netbeans.spi.editor.completion.CompletionResultSet;
+import org.netbeans.spi.editor.completion.CompletionTask;
+import org.openide.ErrorManager;
+import org.openide.filesystems.FileObject;
+import org.openide.filesystems.FileUtil;
+import org.openide.loaders.DataObject;
+import org.openide.windows.TopComponent;
+
+import com.raelity.jvi.core.Options;
+import com.raelity.jvi.options.DebugOption;
+import com.raelity.jvi.swing.CommandLine;
+
+/**
+ * File path completion for commands like ":e" and ":sp".
+ * Paths are relative to the project of the active editor's file,
+ * or if there is none the current directory. The names come from a
+ * {@link FilePathIndex}, a query does not look at the disk.
+ * A path typed relative to the current directory is inserted that way,
+ * otherwise the absolute path is inserted.
+ * The result is computed on a worker, see {@link CcCompletion.Query}.
+ *
+ * @author Ernie Rael <err at raelity.com>
+ */
+public class FilePathTask implements CompletionTask
+{
+    private static DebugOption dbgCompl;
+    /** at most this many items */
+    private static final int MAX_ITEMS = 500;
+
+    private static FileObject userDir;
+    private static boolean userDirChecked;
+    /** a file's project directory, or the file itself if no project */
+    private static final Map<FileObject, FileObject> roots
+            = Collections.synchronizedMap(new WeakHashMap<FileObject, FileObject>());
+
+    JTextComponent jtc;
+    private final CcCompletion.Query cq = CcCompletion.Query.create();
+    /** the file of the active editor when the task was created */
+    private final FileObject activeFile;
+
+    public FilePathTask(JTextComponent jtc)
+    {
+        this.jtc = jtc;
+        dbgCompl = (DebugOption)Options.getOption(Options.dbgCompletion);
+        activeFile = findActiveFile();
+    }
+
+    private String jtc() { return CcCompletion.state(jtc); }
+
+    private static FileObject findActiveFile()
+    {
+        TopComponent tc = TopComponent.getRegistry().getActivated();
+        if(tc == null)
+            return null;
+        DataObject dobj = tc.getLookup().lookup(DataObject.class);
+        return dobj != null ? dobj.getPrimaryFile() : null;
+    }
+
+    /** the snapshot is the offset of the argument */
+    private final CcCompletion.QueryWork<Integer> work
+            = new CcCompletion.QueryWork<Integer>() {
+        @Override
+        public Integer snapshot(String text)
+        {
+            if(text.trim().isEmpty()
+                    || !CcCompletion.isFilePathCompletion(text))
+                return null;
+            return CcCompletion.getArgOffset(text);
+        }
+
+        @Override
+        public void run(CompletionResultSet resultSet, String text,
+                        Integer argOffset, CcCompletion.Query q)
+        {
+            filterResult(resultSet, text, argOffset, q, "QUERY FP");
+        }
+    };
+
+    @Override
+    public void query(CompletionResultSet resultSet)
+    {
+        cq.post(jtc, resultSet, work);
+    }
+
+    @Override
+    public void refresh(CompletionResultSet resultSet)
+    {
+        if(resultSet == null) {
+            if (dbgCompl.getBoolean())
+                dbgCompl.println("REFRESH FP with null resultSet " + jtc());
+            return;
+        }
+        cq.post(jtc, resultSet, work);
+    }
+
+    @Override
+    public void cancel()
+    {
+        if (dbgCompl.getBoolean())
+            dbgCompl.println("CANCEL FP: " + jtc());
+        cq.cancel();
+        Completion.get().hideAll();
+    }
+
+    private static synchronized FileObject getUserDir()
+    {
+        if(!userDirChecked) {
+            userDirChecked = true;
+            File f = new File(System.getProperty("user.dir"));
+            userDir = FileUtil.toFileObject(FileUtil.normalizeFile(f));
+        }
+        return userDir;
+    }
+
+    private FileObject getRoot()
+    {
+        if(activeFile != null) {
+            FileObject root = roots.get(activeFile);
+            if(root == null) {
+                Project p = FileOwnerQuery.getOwner(activeFile);
+                root = p != null ? p.getProjectDirectory() : activeFile;
+                roots.put(activeFile, root);
+            }
+            if(root != activeFile)
+                return root;
+        }
+        return getUserDir();
+    }
+
+    /** runs on the worker, with a snapshot of the command line */
+    private void filterResult(CompletionResultSet resultSet, String text,
+                              int argOffset, CcCompletion.Query q, String tag)
+    {
+        String dbsString = "";
+        if (dbgCompl.getBoolean())
+            dbsString = tag + ": \'" + text + "\'";
+        FileObject root = getRoot();
+        if (argOffset >= 0 && root != null) {
+            String filter = text.substring(argOffset);
+            // the index and the inserted paths use '/'
+            if(File.separatorChar != '/')
+                filter = filter.replace(File.separatorChar, '/');
+            FilePathIndex idx = FilePathIndex.get(root);
+
+            // an absolute path into the root is made relative
+            String rootPath = null;
+            if(FileUtil.toFile(root) != null) {
+                rootPath = root.getPath();
+                if(!rootPath.endsWith("/"))
+                    rootPath += "/";
+            }
+            String insertRoot = "";
+            if (rootPath != null && filter.startsWith(rootPath)) {
+                insertRoot = rootPath;
+                filter = filter.substring(rootPath.length());
+            } else if (root != getUserDir() && rootPath != null)
+                insertRoot = rootPath;
+
+            int slash = filter.lastIndexOf('/');
+            String dir = filter.substring(0, slash + 1);
+            String prefix = filter.substring(slash + 1);
+            if (dbgCompl.getBoolean())
+                dbsString += ", root \'" + root.getPath()
+                        + "\', dir \'" + dir
+                        + "\', prefix \'" + prefix + "\'"
+                        + (idx.isReady() ? "" : " (indexing)");
+            List<String> names = idx.lookup(dir, prefix, MAX_ITEMS);
+            if (q.isStale()) {
+                if (dbgCompl.getBoolean())
+                    dbgCompl.println(dbsString + ", STALE");
+                resultSet.finish();
+                return;
+            }
+            resultSet.setAnchorOffset(text.length() - prefix.length());
+            for (String name : names) {
+                resultSet.addItem(new FilePathItem(
+                        name, insertRoot + dir + name, argOffset));
+            }
+        }
+        if (dbgCompl.getBoolean()) {
+            dbsString += ", result: " + resultSet;
+            dbgCompl.println(dbsString);
+        }
+        resultSet.finish();
+    }
+
+    private static class FilePathItem implements CompletionItem
+    {
+        /** name in its folder, a folder ends with '/' */
+        private final String name;
+        /** name as html */
+        private final String label;
+        /** what replaces the command's argument */
+        private final String path;
+        private final int argOffset;
+
+        FilePathItem(String name, String path, int argOffset)
+        {
+            this.name = name;
+            this.label = name.replace("&", "&amp;").replace("<", "&lt;");
+            this.path = path;
+            this.argOffset = argOffset;
+        }
+
+        private boolean isFolder()
+        {
+            return name.endsWith("/");
+        }
+
+        @Override
+        public void defaultAction(JTextComponent jtc)
+        {
+            if (dbgCompl.getBoolean())
+                dbgCompl.println("DEFAULT ACTION FP: \'" + path + "\'");
+            doSubstitute(jtc);
+            if (isFolder()) {
+                // keep going into the folder
+                Completion.get().showCompletion();
+                return;
+            }
+            Completion.get().hideAll();
+            // Go for it
+            Action act = jtc.getKeymap().getAction(CommandLine.EXECUTE_KEY);
+            if (act != null)
+                act.actionPerformed(new ActionEvent(jtc,
+                                                    ActionEvent.ACTION_PERFORMED,
+                                                    "\n"));
+        }
+
+        private void doSubstitute(JTextComponent jtc)
+        {
+            Document doc = jtc.getDocument();
+            int caretOffset = doc.getLength(); // clear to end of line
+            try {
+                doc.remove(argOffset, caretOffset - argOffset);
+                doc.insertString(argOffset, path, null);
+                jtc.setCaretPosition(argOffset + path.length());
+            } catch (BadLocationException e) {
+                ErrorManager.getDefault().notify(ErrorManager.INFORMATIONAL, e);
+            }
+        }
+
+        @Override
+        public void processKeyEvent(KeyEvent evt)
+        {
+            if (evt.getID() == KeyEvent.KEY_PRESSED &&
+                    evt.getKeyChar() == KeyEvent.VK_TAB) {
+                // see CommandNameTask, get rid of selection
+                JTextComponent jtc = (JTextComponent)evt.getSource();
+                jtc.setCaretPosition(jtc.getDocument().getLength());
+            }
+            if (evt.getID() == KeyEvent.KEY_TYPED &&
+                    evt.getKeyChar() == KeyEvent.VK_TAB)
+                evt.consume();
+        }
+
+        @Override
+        public int getPreferredWidth(Graphics g, Font font)
+        {
+            return CompletionUtilities.getPreferredWidth(
+                    label, null, g, font, 0);
+        }
+
+        @Override
+        public void render(Graphics g, Font defaultFont, Color defaultColor,
+                           Color backgroundColor, int width, int height,
+                           boolean selected)
+        {
+            if (dbgCompl.getBoolean(Level.FINER))
+                dbgCompl.println(Level.FINER, "RENDER FP: \'" + name
+                                 + "\', selected " + selected);
+            CompletionUtilities.renderHtml(
+                    null, label, null, g, defaultFont,
+                    selected ? Color.white : defaultColor,
+                    width, height, selected, 0);
+        }
+
+        @Override
+        public CompletionTask createDocumentationTask()
+        {
+            return null;
+        }
+
+        @Override
+        public CompletionTask createToolTipTask()
+        {
+            return null;
+        }
+
+        @Override
+        public boolean instantSubstitution(JTextComponent component)
+        {
+            return false;
+        }
+
+        @Override
+        public int getSortPriority()
+        {
+            // folders first
+            return isFolder() ? 0 : 1;
+        }
+
+        @Override
+        public CharSequence getSortText()
+        {
+            return name.toLowerCase();
+        }
+
+        @Override
+        public CharSequence getInsertPrefix()
+        {
+            return name;
+        }
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * The contents of this file are subject to the Mozilla Public
+ * License Version 1.1 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of
+ * the License at http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS
+ * IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * rights and limitations under the License.
+ *
+ * The Original Code is jvi - vi editor clone.
+ *
+ * The Initial Developer of the Original Code is Ernie Rael.
+ * Portions created by Ernie Rael are
+ * Copyright (C) 2011 Ernie Rael.  All Rights Reserved.
+ *
+ * Contributor(s): Ernie Rael <err@raelity.com>
+ */
+
+package org.netbeans.modules.jvi.completion;
+
+/**
+ * Subsequence matching of a filter against a name, with a score so
+ * the better matches can be put first. "nbb" matches "NbBuffer.java"
+ * and scores higher than for "NbStatusBar.java".
+ * <p/>
+ * The names and the filter are char arrays, the names are lower cased
+ * once by the caller; matching doesn't allocate.
+ *
+ * @author Ernie Rael <err at raelity.com>
+ */
+final class FuzzyMatcher
+{
+    private FuzzyMatcher() { }
+
+    /** no match */
+    static final int NO_MATCH = -1;
+    /** used as the base of a CompletionItem's sort priority */
+    static final int MAX_SCORE = 1000;
+
+    private static final int MATCH = 1;
+    private static final int CONSECUTIVE = 5;
+    private static final int BOUNDARY = 8;
+    private static final int PREFIX = 10;
+    private static final int MAX_LEAD_PENALTY = 10;
+
+    static char[] lower(String s)
+    {
+        char[] c = s.toCharArray();
+        for(int i = 0; i < c.length; i++) {
+            c[i] = Character.toLowerCase(c[i]);
+        }
+        return c;
+    }
+
+    /**
+     * @param filter lower cased filter
+     * @param name the name as displayed
+     * @param lower the name lower cased
+     * @return the score, higher is better, or NO_MATCH
+     */
+    static int score(char[] filter, char[] name, char[] lower)
+    {
+        if(filter.length == 0)
+            return 0;
+        if(filter.length > lower.length)
+            return NO_MATCH;
+        int score = 0;
+        int fi = 0;
+        int prev = -2;
+        int first = -1;
+        for(int i = 0; i < lower.length && fi < filter.length; i++) {
+            if(lower[i] != filter[fi])
+                continue;
+            int s = MATCH;
+            if(i == prev + 1)
+                s += CONSECUTIVE;
+            if(isBoundary(name, i))
+                s += BOUNDARY;
+            score += s;
+            if(first < 0)
+                first = i;
+            prev = i;
+            fi++;
+        }
+        if(fi < filter.length)
+            return NO_MATCH;
+        if(first == 0 && prev == filter.length - 1)
+            score += PREFIX;
+        score -= Math.min(first, MAX_LEAD_PENALTY);
+        // a little for the shorter names
+        score -= (lower.length - filter.length) >> 3;
+        return Math.max(1, Math.min(score, MAX_SCORE));
+    }
+
+    /** start of the name or of a word in it */
+    private static boolean isBoundary(char[] name, int i)
+    {
+        if(i == 0)
+            return true;
+        char p = name[i - 1];
+        char c = name[i];
+        return p == '.' || p == '_' || p == '-' || p == ' ' || p == '/'
+                || Character.isUpperCase(c) && !Character.isUpperCase(p)
+                || Character.isDigit(c) && !Character.isDigit(p);
+    }
+
+    /** @return true if lower starts with filter */
+    static boolean isPrefix(char[] filter, char[] lower)
+    {
+        if(filter.length > lower.length)
+            return false;
+        for(int i = 0; i < filter.length; i++) {
+            if(filter[i] != lower[i])
+                return false;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,704 @@
+/*
+ * The contents of this file are subject to the Mozilla Public
+ * License Version 1.1 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of
+ * the License at http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS
+ * IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * rights and limitations under the License.
+ *
+ * The Original Code is jvi - vi editor clone.
+ *
+ * The Initial Developer of the Original Code is Ernie Rael.
+ * Portions created by Ernie Rael are
+ * Copyright (C) 2011 Ernie Rael.  All Rights Reserved.
+ *
+ * Contributor(s): Ernie Rael <err@raelity.com>
+ */
+
+package org.netbeans.modules.jvi.impl;
+
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.swing.JEditorPane;
+import javax.swing.text.Document;
+
+import org.netbeans.modules.editor.NbEditorUtilities;
+import org.openide.cookies.LineCookie;
+import org.openide.filesystems.FileObject;
+import org.openide.filesystems.FileUtil;
+import org.openide.loaders.DataObject;
+import org.openide.loaders.DataObjectNotFoundException;
+import org.openide.text.Line;
+import org.openide.util.RequestProcessor;
+
+import com.raelity.jvi.ViOutputStream;
+import com.raelity.jvi.ViTextView;
+import com.raelity.jvi.core.ColonCommands;
+import com.raelity.jvi.core.ColonCommands.ColonEvent;
+import com.raelity.jvi.core.Msg;
+import com.raelity.jvi.core.lib.CcFlag;
+import com.raelity.jvi.manager.ViManager;
+
+/**
+ * A ctags "tags" file. The tag lines, which ctags writes sorted, are
+ * found with a binary search that reads a few small blocks of the file;
+ * only the lines that match are parsed. A tags file that says it is not
+ * sorted is scanned. The file is open only while a lookup runs, and is
+ * neither mapped nor read into the heap, so a tags file of hundreds of MB
+ * is fine and ctags can rewrite it at any time.
+ * <p/>
+ * The tags file used is the first "tags" found in the directory of the
+ * current file or a parent directory, else in the current directory;
+ * like vim's "./tags;,tags". Which tags file a directory uses is
+ * remembered for a little while.
+ * <p/>
+ * Jumping to a tag searches the target file off the event thread.
+ * <p/>
+ * The matches of the last lookup are kept for :ts, :tn and :tp.
+ *
+ * @author Ernie Rael <err at raelity.com>
+ */
+public final class CTags
+{
+    private static final Logger LOG = Logger.getLogger(CTags.class.getName());
+
+    private static final String TAGS = "tags";
+    private static final String SORTED = "!_TAG_FILE_SORTED\t";
+    /** the tag lines have single bytes, any encoding round trips */
+    private static final Charset BYTES = Charset.forName("ISO-8859-1");
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final RequestProcessor RP
+            = new RequestProcessor(CTags.class.getName());
+
+    /** max number of tags files kept, an entry is a few fields */
+    private static final int CACHE_SIZE = 16;
+    private static final Map<File, CTags> cache
+            = new LinkedHashMap<File, CTags>(32, .75f, true) {
+                @Override
+                protected boolean removeEldestEntry(
+                        Map.Entry<File, CTags> eldest)
+                {
+                    return size() > CACHE_SIZE;
+                }
+            };
+
+    /** how long the tags file found for a directory is used, millis */
+    private static final long FOUND_TTL = 10 * 1000;
+    /** directory to the tags file it uses, for find */
+    private static final Map<File, Found> found = new HashMap<File, Found>();
+
+    private static final class Found
+    {
+        /** null if there is none */
+        final File tags;
+        final long time;
+
+        Found(File tags, long time)
+        {
+            this.tags = tags;
+            this.time = time;
+        }
+    }
+
+    private final File file;
+    private final long length;
+    private final long modified;
+    /** 0 not sorted, 1 sorted, 2 sorted with case folded */
+    private final int sorted;
+
+    /** result of the last lookup, only used on the event thread */
+    private static List<Entry> matches = Collections.emptyList();
+    private static int iMatch;
+
+    private CTags(File file) throws IOException
+    {
+        this.file = file;
+        this.length = file.length();
+        this.modified = file.lastModified();
+        Search s = new Search(file, length);
+        try {
+            sorted = s.readSorted();
+        } finally {
+            s.close();
+        }
+    }
+
+    /**
+     * @return the tags file for the file in tv, or null if there is none
+     */
+    static CTags find(ViTextView tv)
+    {
+        File dir = null;
+        if(tv != null) {
+            Document doc = ((JEditorPane)tv.getEditor()).getDocument();
+            FileObject fo = doc == null
+                    ? null : NbEditorUtilities.getFileObject(doc);
+            dir = fo == null ? null : FileUtil.toFile(fo);
+            if(dir != null)
+                dir = dir.getParentFile();
+        }
+        File f = findTagsFile(dir);
+        return f == null ? null : get(f);
+    }
+
+    /** @return the tags file used for dir, null if there is none */
+    private static synchronized File findTagsFile(File dir)
+    {
+        File userDir = new File(System.getProperty("user.dir"));
+        File key = dir != null ? dir : userDir;
+        long now = System.currentTimeMillis();
+        Found fd = found.get(key);
+        if(fd != null && now - fd.time < FOUND_TTL
+                && (fd.tags == null || fd.tags.isFile()))
+            return fd.tags;
+        File f = null;
+        for(; dir != null && f == null; dir = dir.getParentFile()) {
+            File t = new File(dir, TAGS);
+            if(t.isFile())
+                f = t;
+        }
+        if(f == null) {
+            File t = new File(userDir, TAGS);
+            if(t.isFile())
+                f = t;
+        }
+        found.put(key, new Found(f, now));
+        return f;
+    }
+
+    private static synchronized CTags get(File f)
+    {
+        CTags tags = cache.get(f);
+        if(tags != null && tags.length == f.length()
+                && tags.modified == f.lastModified())
+            return tags;
+        cache.remove(f);
+        try {
+            tags = new CTags(f);
+            cache.put(f, tags);
+            LOG.log(Level.FINE, "opened {0}, {1} bytes, sorted {2}",
+                    new Object[] {f, tags.length, tags.sorted});
+        } catch(IOException ex) {
+            LOG.log(Level.WARNING, null, ex);
+            tags = null;
+        }
+        return tags;
+    }
+
+    /**
+     * Reads of the tags file for one lookup. The file is read a block at
+     * a time, a few recent blocks are kept; a binary search touches the
+     * same blocks as it closes in.
+     */
+    private static final class Search
+    {
+        private static final int BLOCK = 8 * 1024;
+        private static final int MAX_BLOCKS = 16;
+
+        private final RandomAccessFile raf;
+        private final FileChannel ch;
+        private final long size;
+        private final Map<Long, ByteBuffer> blocks
+                = new LinkedHashMap<Long, ByteBuffer>(32, .75f, true) {
+                    @Override
+                    protected boolean removeEldestEntry(
+                            Map.Entry<Long, ByteBuffer> eldest)
+                    {
+                        return size() > MAX_BLOCKS;
+                    }
+                };
+
+        Search(File file, long size) throws IOException
+        {
+            this.raf = new RandomAccessFile(file, "r");
+            this.ch = raf.getChannel();
+            this.size = size;
+        }
+
+        void close()
+        {
+            try {
+                raf.close();
+            } catch(IOException ex) {
+                LOG.log(Level.WARNING, null, ex);
+            }
+        }
+
+        /** @return the byte at p, a short file reads as newlines */
+        int get(long p) throws IOException
+        {
+            Long b = p / BLOCK;
+            ByteBuffer bb = blocks.get(b);
+            if(bb == null) {
+                bb = ByteBuffer.allocate(BLOCK);
+                long start = b * BLOCK;
+                while(bb.hasRemaining()
+                        && ch.read(bb, start + bb.position()) >= 0) {
+                }
+                bb.flip();
+                blocks.put(b, bb);
+            }
+            int i = (int)(p % BLOCK);
+            return i < bb.limit() ? bb.get(i) & 0xff : '\n';
+        }
+
+        int readSorted() throws IOException
+        {
+            // the header lines start with "!_TAG_" and come first
+            byte[] key = SORTED.getBytes(BYTES);
+            for(long p = 0; p < size && get(p) == '!';) {
+                int i = 0;
+                while(i < key.length && p + i < size
+                        && get(p + i) == (key[i] & 0xff))
+                    i++;
+                if(i == key.length && p + i < size) {
+                    int c = get(p + i);
+                    return c == '1' ? 1 : c == '2' ? 2 : 0;
+                }
+                p = nextLine(p);
+            }
+            // ctags has always sorted by default
+            return 1;
+        }
+
+        /** @return the start of the line after the one containing p */
+        long nextLine(long p) throws IOException
+        {
+            while(p < size && get(p) != '\n')
+                p++;
+            return p < size ? p + 1 : size;
+        }
+
+        /** @return the start of the first line at or after p */
+        long lineAtOrAfter(long p) throws IOException
+        {
+            return p == 0 ? 0 : nextLine(p - 1);
+        }
+
+        /**
+         * Compare the tag name of the line at p with name.
+         * A tag name ends with a tab.
+         */
+        int compare(long p, byte[] name, boolean foldCase) throws IOException
+        {
+            for(int i = 0; ; i++, p++) {
+                int c = p < size ? get(p) : '\t';
+                if(c == '\n' || c == '\r')
+                    c = '\t';
+                if(i == name.length)
+                    return c == '\t' ? 0 : 1;
+                if(c == '\t')
+                    return -1;
+                int n = name[i] & 0xff;
+                if(foldCase) {
+                    c = fold(c);
+                    n = fold(n);
+                }
+                if(c != n)
+                    return c < n ? -1 : 1;
+            }
+        }
+
+        /** @return the line at p, bytes as ISO-8859-1 chars */
+        String line(long p) throws IOException
+        {
+            long end = nextLine(p);
+            StringBuilder sb = new StringBuilder((int)(end - p));
+            for(; p < end; p++) {
+                sb.append((char)get(p));
+            }
+            return sb.toString();
+        }
+    }
+
+    private static int fold(int c)
+    {
+        return c >= 'A' && c <= 'Z' ? c + ('a' - 'A') : c;
+    }
+
+    /** @return the tags named name, empty if the file can't be read */
+    List<Entry> lookup(String name)
+    {
+        long t0 = System.nanoTime();
+        byte[] key = name.getBytes(UTF8);
+        List<Entry> result = new ArrayList<Entry>();
+        Search s = null;
+        try {
+            s = new Search(file, length);
+            if(sorted == 0) {
+                for(long p = 0; p < length; p = s.nextLine(p)) {
+                    if(s.compare(p, key, false) == 0)
+                        addEntry(result, s.line(p));
+                }
+            } else {
+                boolean foldCase = sorted == 2;
+                // smallest x where the first line at or after x is >= key
+                long lo = 0;
+                long hi = length;
+                while(lo < hi) {
+                    long mid = (lo + hi) >>> 1;
+                    long p = s.lineAtOrAfter(mid);
+                    if(p >= length || s.compare(p, key, foldCase) >= 0)
+                        hi = mid;
+                    else
+                        lo = mid + 1;
+                }
+                for(long p = s.lineAtOrAfter(lo);
+                        p < length && s.compare(p, key, foldCase) == 0;
+                        p = s.nextLine(p)) {
+                    if(!foldCase || s.compare(p, key, false) == 0)
+                        addEntry(result, s.line(p));
+                }
+            }
+        } catch(IOException ex) {
+            LOG.log(Level.WARNING, null, ex);
+        } finally {
+            if(s != null)
+                s.close();
+        }
+        LOG.log(Level.FINE, "lookup {0}: {1} found, {2} us", new Object[] {
+                name, result.size(), (System.nanoTime() - t0) / 1000});
+        return result;
+    }
+
+    private void addEntry(List<Entry> result, String line)
+    {
+        Entry e = Entry.parse(file.getParentFile(), line);
+        if(e != null)
+            result.add(e);
+    }
+
+    /**
+     * One line of a tags file: name, file and the ex command that
+     * finds the tag in the file, either a line number or a search.
+     */
+    static final class Entry
+    {
+        final String name;
+        final File file;
+        /** one based, or 0 if there's a pattern */
+        final int line;
+        /** the search pattern without delimiters or escapes */
+        final String pattern;
+        final boolean bol;
+        final boolean eol;
+        final String kind;
+
+        private Entry(String name, File file, int line, String pattern,
+                      boolean bol, boolean eol, String kind)
+        {
+            this.name = name;
+            this.file = file;
+            this.line = line;
+            this.pattern = pattern;
+            this.bol = bol;
+            this.eol = eol;
+            this.kind = kind;
+        }
+
+        /** @param s the line, bytes as ISO-8859-1 chars */
+        static Entry parse(File dir, String s)
+        {
+            s = s.endsWith("\n") ? s.substring(0, s.length() - 1) : s;
+            s = s.endsWith("\r") ? s.substring(0, s.length() - 1) : s;
+            int t1 = s.indexOf('\t');
+            int t2 = t1 < 0 ? -1 : s.indexOf('\t', t1 + 1);
+            if(t2 < 0)
+                return null;
+            String name = new String(s.substring(0, t1).getBytes(BYTES), UTF8);
+            String fn = new String(s.substring(t1 + 1, t2).getBytes(BYTES),
+                                   UTF8);
+            File f = new File(fn);
+            if(!f.isAbsolute())
+                f = new File(dir, fn);
+
+            int line = 0;
+            String pattern = null;
+            boolean bol = false;
+            boolean eol = false;
+            int p = t2 + 1;
+            if(p < s.length() && (s.charAt(p) == '/' || s.charAt(p) == '?')) {
+                char delim = s.charAt(p++);
+                StringBuilder sb = new StringBuilder();
+                for(; p < s.length() && s.charAt(p) != delim; p++) {
+                    char c = s.charAt(p);
+                    if(c == '\\' && p + 1 < s.length()) {
+                        c = s.charAt(++p);
+                        // keep the backslash unless it quotes something
+                        if(c != delim && c != '\\')
+                            sb.append('\\');
+                    }
+                    sb.append(c);
+                }
+                p++;
+                if(sb.length() > 0 && sb.charAt(0) == '^') {
+                    bol = true;
+                    sb.deleteCharAt(0);
+                }
+                if(sb.length() > 0 && sb.charAt(sb.length() - 1) == '$') {
+                    eol = true;
+                    sb.deleteCharAt(sb.length() - 1);
+                }
+                pattern = sb.toString();
+            } else {
+                for(; p < s.length() && Character.isDigit(s.charAt(p)); p++) {
+                    line = line * 10 + s.charAt(p) - '0';
+                }
+                if(line == 0)
+                    return null;
+            }
+
+            String kind = "";
+            int ext = s.indexOf(";\"\t", p);
+            if(ext >= 0) {
+                int k = ext + 3;
+                int ke = s.indexOf('\t', k);
+                kind = ke < 0 ? s.substring(k) : s.substring(k, ke);
+                if(kind.startsWith("kind:"))
+                    kind = kind.substring(5);
+            }
+            return new Entry(name, f, line, pattern, bol, eol, kind);
+        }
+
+        /** @return zero based line and column, or null if not found */
+        private int[] findLine(FileObject fo) throws IOException
+        {
+            if(pattern == null)
+                return new int[] {line - 1, 0};
+            BufferedReader r = new BufferedReader(
+                    new InputStreamReader(fo.getInputStream(), BYTES));
+            try {
+                String s;
+                for(int n = 0; (s = r.readLine()) != null; n++) {
+                    int idx;
+                    if(bol && eol)
+                        idx = s.equals(pattern) ? 0 : -1;
+                    else if(bol)
+                        idx = s.startsWith(pattern) ? 0 : -1;
+                    else if(eol)
+                        idx = s.endsWith(pattern)
+                                ? s.length() - pattern.length() : -1;
+                    else
+                        idx = s.indexOf(pattern);
+                    if(idx >= 0) {
+                        int col = s.indexOf(new String(name.getBytes(UTF8),
+                                                       BYTES), idx);
+                        // the line is bytes, the column is in chars
+                        col = col < 0 ? 0 : new String(
+                                s.substring(0, col).getBytes(BYTES), UTF8)
+                                .length();
+                        return new int[] {n, col};
+                    }
+                }
+            } finally {
+                r.close();
+            }
+            return null;
+        }
+
+        /**
+         * Open the file at the tag. The file is found and searched
+         * off the event thread, then shown on the event thread.
+         */
+        void jump()
+        {
+            RP.post(new Runnable() {
+                @Override
+                public void run()
+                {
+                    String err = null;
+                    LineCookie cookie = null;
+                    int[] lc = null;
+                    FileObject fo = FileUtil.toFileObject(
+                            FileUtil.normalizeFile(file));
+                    if(fo == null) {
+                        err = "E429: File \"" + file.getPath()
+                                + "\" does not exist";
+                    } else {
+                        try {
+                            lc = findLine(fo);
+                            if(lc == null)
+                                err = "E434: Can't find tag pattern";
+                            else
+                                cookie = DataObject.find(fo)
+                                        .getLookup().lookup(LineCookie.class);
+                        } catch(DataObjectNotFoundException ex) {
+                            LOG.log(Level.SEVERE, null, ex);
+                        } catch(IOException ex) {
+                            err = ex.getMessage();
+                        }
+                    }
+                    show(err, cookie, lc);
+                }
+            });
+        }
+
+        private static void show(final String err, final LineCookie cookie,
+                                 final int[] lc)
+        {
+            ViManager.runInDispatch(false, new Runnable() {
+                @Override
+                public void run()
+                {
+                    if(err != null) {
+                        Msg.emsg(err);
+                        return;
+                    }
+                    if(cookie == null)
+                        return;
+                    try {
+                        // the tags file has the line numbers of the saved file
+                        Line l = cookie.getLineSet().getOriginal(lc[0]);
+                        l.show(Line.ShowOpenType.OPEN,
+                               Line.ShowVisibilityType.FOCUS, lc[1]);
+                    } catch(IndexOutOfBoundsException ex) {
+                        Msg.emsg("E434: Can't find tag pattern");
+                    }
+                }
+            });
+        }
+    }
+
+    //
+    // The current matches, vim's "matching tag list"
+    //
+
+    public static void init()
+    {
+        ColonCommands.register("ts", "tselect", new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e)
+            {
+                ColonEvent ce = (ColonEvent)e;
+                if(ce.getNArg() > 0
+                        && findMatches(ce.getViTextView(), ce.getArg(1))
+                                .isEmpty()) {
+                    Msg.emsg("E426: tag not found: " + ce.getArg(1));
+                    return;
+                }
+                if(!hasMatches()) {
+                    Msg.emsg("E426: tag not found");
+                    return;
+                }
+                displayMatches();
+            }
+        }, null);
+        ActionListener next = new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e)
+            {
+                if(stepMatch(1))
+                    jumpMatch();
+            }
+        };
+        ActionListener prev = new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e)
+            {
+                if(stepMatch(-1))
+                    jumpMatch();
+            }
+        };
+        ColonCommands.register("tn", "tnext", next,
+                               EnumSet.of(CcFlag.NO_ARGS));
+        ColonCommands.register("tp", "tprevious", prev,
+                               EnumSet.of(CcFlag.NO_ARGS));
+        ColonCommands.register("tN", "tNext", prev,
+                               EnumSet.of(CcFlag.NO_ARGS));
+    }
+
+    /**
+     * Look up ident and remember the matches.
+     * @return the matches, empty if none or no tags file
+     */
+    static List<Entry> findMatches(ViTextView tv, String ident)
+    {
+        CTags tags = find(tv);
+        List<Entry> l = tags == null
+                ? Collections.<Entry>emptyList() : tags.lookup(ident);
+        if(!l.isEmpty()) {
+            matches = l;
+            iMatch = 0;
+        }
+        return l;
+    }
+
+    static boolean hasMatches()
+    {
+        return !matches.isEmpty();
+    }
+
+    /**
+     * Jump to the current match, the jump finishes later.
+     * @return false if there are no matches
+     */
+    static boolean jumpMatch()
+    {
+        if(matches.isEmpty())
+            return false;
+        if(matches.size() > 1)
+            Msg.smsg("tag " + (iMatch + 1) + " of " + matches.size());
+        matches.get(iMatch).jump();
+        return true;
+    }
+
+    /** move through the matches, positive count for next. */
+    static boolean stepMatch(int count)
+    {
+        if(matches.isEmpty()) {
+            Msg.emsg("E426: tag not found");
+            return false;
+        }
+        int i = iMatch + count;
+        if(i < 0 || i >= matches.size()) {
+            Msg.emsg(i < 0 ? "E425: Cannot go before first matching tag"
+                           : "E428: Cannot go beyond last matching tag");
+            return false;
+        }
+        iMatch = i;
+        return true;
+    }
+
+    /** list the matches, like :ts */
+    static void displayMatches()
+    {
+        String heading = "  # kind tag                 file";
+        ViOutputStream vios = ViManager.createOutputStream(
+                null, ViOutputStream.OUTPUT, heading);
+        for(int i = 0; i < matches.size(); i++) {
+            Entry e = matches.get(i);
+            vios.println(String.format("%1s%2d %-4s %-20s %s",
+                                       i == iMatch ? ">" : "",
+                                       i + 1,
+                                       e.kind,
+                                       e.name,
+                                       e.file.getPath()));
+            if(e.pattern != null)
+                vios.println("               "
+                        + new String(e.pattern.getBytes(BYTES), UTF8).trim());
+        }
+        vios.close();
+    }
+}
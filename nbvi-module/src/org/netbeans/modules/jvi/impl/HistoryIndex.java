@@ -0,0 +1,166 @@
+/*
+ * The contents of this file are subject to the Mozilla Public
+ * License Version 1.1 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of
+ * the License at http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS
+ * IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * rights and limitations under the License.
+ *
+ * The Original Code is jvi - vi editor clone.
+ *
+ * The Initial Developer of the Original Code is Ernie Rael.
+ * Portions created by Ernie Rael are
+ * Copyright (C) 2011 Ernie Rael.  All Rights Reserved.
+ *
+ * Contributor(s): Ernie Rael <err@raelity.com>
+ */
+package org.netbeans.modules.jvi.impl;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * An index over a command or search history.
+ * The history is a ring without duplicates, adding something that is
+ * already there makes it the newest. A prefix trie gives the entries
+ * that start with a given string, ordered by age; so recall of
+ * the next older/newer entry that matches a prefix walks the prefix
+ * and then does a lookup in a sorted set, it does not scan the history.
+ *
+ * @author Ernie Rael <err at raelity.com>
+ */
+final class HistoryIndex
+{
+    /** an entry's age, the larger the newer */
+    private static final class Entry implements Comparable<Entry>
+    {
+        final String text;
+        final long seq;
+
+        Entry(String text, long seq)
+        {
+            this.text = text;
+            this.seq = seq;
+        }
+
+        @Override
+        public int compareTo(Entry o)
+        {
+            return seq < o.seq ? -1 : seq == o.seq ? 0 : 1;
+        }
+    }
+
+    private static final class Node
+    {
+        Map<Character, Node> kids;
+        /** entries whose text has this node's prefix */
+        final TreeSet<Entry> entries = new TreeSet<Entry>();
+
+        Node kid(char c, boolean create)
+        {
+            Node n = kids == null ? null : kids.get(c);
+            if(n == null && create) {
+                if(kids == null)
+                    kids = new HashMap<Character, Node>(4);
+                n = new Node();
+                kids.put(c, n);
+            }
+            return n;
+        }
+    }
+
+    private final int capacity;
+    private final Node root = new Node();
+    private final Map<String, Entry> byText = new HashMap<String, Entry>();
+    private long nextSeq = 1;
+
+    HistoryIndex(int capacity)
+    {
+        this.capacity = capacity;
+    }
+
+    synchronized void clear()
+    {
+        root.kids = null;
+        root.entries.clear();
+        byText.clear();
+    }
+
+    synchronized int size()
+    {
+        return byText.size();
+    }
+
+    /** Add text as the newest entry. */
+    synchronized void add(String text)
+    {
+        if(text == null || text.isEmpty())
+            return;
+        Entry e = byText.remove(text);
+        if(e != null)
+            unlink(e);
+        e = new Entry(text, nextSeq++);
+        byText.put(text, e);
+        link(e);
+        while(byText.size() > capacity) {
+            Entry oldest = root.entries.first();
+            byText.remove(oldest.text);
+            unlink(oldest);
+        }
+    }
+
+    /**
+     * Find the entry starting with prefix that is just older (or newer)
+     * than the entry from.
+     * @param prefix what the entry starts with
+     * @param from null to start with the newest (or oldest) entry
+     * @param older direction to look
+     * @return null if nothing matches
+     */
+    synchronized String recall(String prefix, String from, boolean older)
+    {
+        Node n = root;
+        for(int i = 0; n != null && i < prefix.length(); i++) {
+            n = n.kid(prefix.charAt(i), false);
+        }
+        if(n == null || n.entries.isEmpty())
+            return null;
+        Entry e;
+        Entry cur = from == null ? null : byText.get(from);
+        if(cur == null)
+            e = older ? n.entries.last() : null;
+        else
+            e = older ? n.entries.lower(cur) : n.entries.higher(cur);
+        return e == null ? null : e.text;
+    }
+
+    private void link(Entry e)
+    {
+        Node n = root;
+        n.entries.add(e);
+        for(int i = 0; i < e.text.length(); i++) {
+            n = n.kid(e.text.charAt(i), true);
+            n.entries.add(e);
+        }
+    }
+
+    private void unlink(Entry e)
+    {
+        Node n = root;
+        n.entries.remove(e);
+        for(int i = 0; i < e.text.length(); i++) {
+            Node kid = n.kid(e.text.charAt(i), false);
+            kid.entries.remove(e);
+            if(kid.entries.isEmpty()) {
+                // nothing else below here
+                n.kids.remove(e.text.charAt(i));
+                break;
+            }
+            n = kid;
+        }
+    }
+}
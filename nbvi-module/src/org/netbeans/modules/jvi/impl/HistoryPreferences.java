@@ -0,0 +1,743 @@
+/*
+ * The contents of this file are subject to the Mozilla Public
+ * License Version 1.1 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of
+ * the License at http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS
+ * IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * rights and limitations under the License.
+ *
+ * The Original Code is jvi - vi editor clone.
+ *
+ * The Initial Developer of the Original Code is Ernie Rael.
+ * Portions created by Ernie Rael are
+ * Copyright (C) 2011 Ernie Rael.  All Rights Reserved.
+ *
+ * Contributor(s): Ernie Rael <err@raelity.com>
+ */
+package org.netbeans.modules.jvi.impl;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.prefs.AbstractPreferences;
+import java.util.prefs.BackingStoreException;
+import java.util.prefs.Preferences;
+
+import org.openide.filesystems.FileObject;
+import org.openide.filesystems.FileUtil;
+import org.openide.util.RequestProcessor;
+
+/**
+ * The "commands" and "search" history preferences nodes.
+ * The key/values are held in memory, loaded once. Changes are appended
+ * to a log file in the config folder {@value #FOLDER} in the background;
+ * the log is rewritten only when it has too many dead records.
+ * A {@link HistoryIndex} over the values is kept for prefix recall;
+ * it is a backend for jVi core's history, see {@link #recall}, the
+ * module does not bind any keys for it.
+ * <p/>
+ * jVi saves the history with the position as the key, "0" is the newest;
+ * so a new command changes every key. The log keeps the history
+ * as a list of values: a new command is one record that moves it to
+ * the front. Other keys, if any, are logged by key.
+ * <p/>
+ * Locking: the preferences lock is always taken before the writer lock.
+ * The changes are taken under both; the file is written holding only
+ * the writer lock, except for flush and removeNode which AbstractPreferences
+ * calls with the preferences lock held.
+ * <p/>
+ * History found in the old location,
+ * config/Preferences/org/netbeans/modules/jvi/{commands,search},
+ * is migrated.
+ *
+ * @author Ernie Rael <err at raelity.com>
+ */
+public final class HistoryPreferences extends AbstractPreferences
+{
+    private static final Logger LOG
+            = Logger.getLogger(HistoryPreferences.class.getName());
+
+    public static final String COMMANDS = "commands";
+    public static final String SEARCH = "search";
+    /** where the logs live, relative to config root */
+    static final String FOLDER = "jVi/history";
+    private static final String LOG_EXT = ".log";
+    private static final int WRITE_DELAY = 1000; // millis
+    /** rewrite the log when it has this many more records than keys */
+    private static final int COMPACT_SLACK = 200;
+    /** more new history entries than this in one write, rewrite the log */
+    private static final int MAX_ADDED = 20;
+    private static final int INDEX_CAPACITY = 1000;
+
+    private static final RequestProcessor RP
+            = new RequestProcessor(HistoryPreferences.class.getName());
+
+    // record types in the log
+    private static final char PUT = 'P';
+    private static final char REMOVE = 'R';
+    private static final char CLEAR = 'X';
+    /** value to the front of the history, then history size */
+    private static final char ADD = 'A';
+    /** history size */
+    private static final char TRUNCATE = 'T';
+
+    private final Map<String, String> map = new LinkedHashMap<String, String>();
+    /** records, other than the history's, not yet written */
+    private final List<String> pending = new ArrayList<String>();
+    /** a position key has changed */
+    private boolean historyChanged;
+    private boolean compact;
+    /** remove after the migrated history is written */
+    private Preferences legacy;
+
+    private final HistoryIndex index = new HistoryIndex(INDEX_CAPACITY);
+    private boolean indexStale = true;
+    /** from this session, may not be saved yet; oldest first */
+    private final List<String> recent = new ArrayList<String>();
+
+    private final ReentrantLock writer = new ReentrantLock();
+    private final RequestProcessor.Task writeTask;
+    // the rest is only used holding the writer lock
+    /** the history in the log file, by position, null if none */
+    private List<String> written = new ArrayList<String>();
+    /** records in the log file */
+    private int logRecords;
+    /** the last write failed */
+    private boolean rewrite;
+    /** written after the migrated history is */
+    private Preferences legacyToRemove;
+
+    /** the changes taken for a write */
+    private static class Batch {
+        boolean compact;
+        /** position keys */
+        SortedMap<Integer, String> history;
+        /** other keys */
+        Map<String, String> others;
+        List<String> records;
+        Preferences legacy;
+    }
+
+    static boolean isHistory(String name)
+    {
+        return COMMANDS.equals(name) || SEARCH.equals(name);
+    }
+
+    /**
+     * @param parent the module's preferences
+     * @param name COMMANDS or SEARCH
+     * @param legacyParent where the history used to be
+     */
+    HistoryPreferences(AbstractPreferences parent, String name,
+                       Preferences legacyParent)
+    {
+        super(parent, name);
+        assert isHistory(name);
+        writeTask = RP.create(new Runnable() {
+            @Override
+            public void run()
+            {
+                write();
+            }
+        });
+        load();
+        migrate(legacyParent);
+    }
+
+    @Override
+    public String absolutePath()
+    {
+        return parent().absolutePath() + "/" + name();
+    }
+
+    /**
+     * Find the history entry starting with prefix that is older (or newer)
+     * than from. This is O(prefix length), the history is not scanned.
+     * For jVi core's history; the node is from
+     * {@code getPreferences().node(COMMANDS or SEARCH)}.
+     * @see HistoryIndex#recall
+     */
+    public String recall(String prefix, String from, boolean older)
+    {
+        synchronized(lock) {
+            if(indexStale) {
+                rebuildIndex();
+                indexStale = false;
+            }
+            return index.recall(prefix, from, older);
+        }
+    }
+
+    /**
+     * A command that was just executed, the history may not be saved
+     * till later; so recall knows about it now.
+     */
+    public void addRecent(String s)
+    {
+        synchronized(lock) {
+            recent.remove(s);
+            recent.add(s);
+            if(recent.size() > INDEX_CAPACITY)
+                recent.remove(0);
+            if(!indexStale)
+                index.add(s);
+        }
+    }
+
+    /**
+     * The history is saved with the key as the position, "0" is the newest.
+     * Add the oldest first, then this session's.
+     */
+    private void rebuildIndex()
+    {
+        String[] keys = map.keySet().toArray(new String[map.size()]);
+        Arrays.sort(keys, new Comparator<String>() {
+            @Override
+            public int compare(String k1, String k2)
+            {
+                int i1 = position(k1);
+                int i2 = position(k2);
+                return i1 != i2 ? (i1 < i2 ? 1 : -1) : k2.compareTo(k1);
+            }
+        });
+        index.clear();
+        for(String key : keys) {
+            index.add(map.get(key));
+        }
+        for(String s : recent) {
+            index.add(s);
+        }
+    }
+
+    /** @return the position, or Integer.MAX_VALUE if not a position key */
+    private static int position(String key)
+    {
+        try {
+            int i = Integer.parseInt(key);
+            return i >= 0 && key.equals(String.valueOf(i))
+                   ? i : Integer.MAX_VALUE;
+        } catch(NumberFormatException ex) {
+            return Integer.MAX_VALUE;
+        }
+    }
+
+    private static boolean isPosition(String key)
+    {
+        return position(key) != Integer.MAX_VALUE;
+    }
+
+    /** @param record the log record, null for a position key */
+    private void changed(String record)
+    {
+        if(record == null)
+            historyChanged = true;
+        else
+            pending.add(record);
+        indexStale = true;
+        writeTask.schedule(WRITE_DELAY);
+    }
+
+    @Override
+    protected void putSpi(String key, String value)
+    {
+        if(!value.equals(map.put(key, value)))
+            changed(isPosition(key) ? null
+                    : PUT + "\t" + escape(key) + "\t" + escape(value));
+    }
+
+    @Override
+    protected String getSpi(String key)
+    {
+        return map.get(key);
+    }
+
+    @Override
+    protected void removeSpi(String key)
+    {
+        if(map.remove(key) != null)
+            changed(isPosition(key) ? null : REMOVE + "\t" + escape(key));
+    }
+
+    @Override
+    protected void removeNodeSpi() throws BackingStoreException
+    {
+        map.clear();
+        pending.clear();
+        compact = true;
+        indexStale = true;
+        // a new node may be created right away, it reads the file
+        writeNow();
+    }
+
+    @Override
+    protected String[] keysSpi() throws BackingStoreException
+    {
+        return map.keySet().toArray(new String[map.size()]);
+    }
+
+    @Override
+    protected String[] childrenNamesSpi() throws BackingStoreException
+    {
+        return new String[0];
+    }
+
+    /** Nothing uses children of history, they are not saved. */
+    @Override
+    protected AbstractPreferences childSpi(String name)
+    {
+        return new MemoryPreferences(this, name);
+    }
+
+    @Override
+    protected void syncSpi() throws BackingStoreException
+    {
+        // only writer of the file, nothing to pick up
+    }
+
+    @Override
+    protected void flushSpi() throws BackingStoreException
+    {
+        writeNow();
+    }
+
+    private File getLogFile() throws IOException
+    {
+        FileObject folder = FileUtil.createFolder(
+                FileUtil.getConfigRoot(), FOLDER);
+        File dir = FileUtil.toFile(folder);
+        return dir == null ? null : new File(dir, name() + LOG_EXT);
+    }
+
+    /** Replay the log. */
+    private void load()
+    {
+        List<String> history = new ArrayList<String>();
+        try {
+            File f = getLogFile();
+            if(f == null || !f.exists())
+                return;
+            BufferedReader r = new BufferedReader(new InputStreamReader(
+                    new FileInputStream(f), "UTF-8"));
+            try {
+                String line;
+                while((line = r.readLine()) != null) {
+                    logRecords++;
+                    String[] rec = line.split("\t", -1);
+                    if(rec[0].length() != 1)
+                        continue;
+                    switch(rec[0].charAt(0)) {
+                    case PUT:
+                        if(rec.length != 3)
+                            break;
+                        String key = unescape(rec[1]);
+                        if(isPosition(key)) {
+                            int pos = position(key);
+                            while(history.size() <= pos) {
+                                history.add(null);
+                            }
+                            history.set(pos, unescape(rec[2]));
+                        } else
+                            map.put(key, unescape(rec[2]));
+                        break;
+                    case REMOVE:
+                        if(rec.length != 2)
+                            break;
+                        key = unescape(rec[1]);
+                        if(isPosition(key)) {
+                            if(position(key) < history.size())
+                                history.set(position(key), null);
+                        } else
+                            map.remove(key);
+                        break;
+                    case ADD:
+                        if(rec.length == 3)
+                            add(history, unescape(rec[2]), size(rec[1]));
+                        break;
+                    case TRUNCATE:
+                        if(rec.length == 2)
+                            truncate(history, size(rec[1]));
+                        break;
+                    case CLEAR:
+                        map.clear();
+                        history.clear();
+                        break;
+                    }
+                }
+            } finally {
+                r.close();
+            }
+        } catch(IOException ex) {
+            LOG.log(Level.SEVERE, null, ex);
+        } finally {
+            for(int i = 0; i < history.size(); i++) {
+                if(history.get(i) != null)
+                    map.put(String.valueOf(i), history.get(i));
+            }
+            written = history;
+        }
+    }
+
+    private static int size(String s)
+    {
+        try {
+            return Integer.parseInt(s);
+        } catch(NumberFormatException ex) {
+            return Integer.MAX_VALUE;
+        }
+    }
+
+    /** the ADD record: move val to the front, no more than size */
+    private static void add(List<String> history, String val, int size)
+    {
+        history.remove(val);
+        history.add(0, val);
+        truncate(history, size);
+    }
+
+    private static void truncate(List<String> history, int size)
+    {
+        while(history.size() > size) {
+            history.remove(history.size() - 1);
+        }
+    }
+
+    /** History in the old location replaces whatever is here. */
+    private void migrate(Preferences legacyParent)
+    {
+        try {
+            if(!legacyParent.nodeExists(name()))
+                return;
+            Preferences old = legacyParent.node(name());
+            LOG.log(Level.INFO, "migrating {0}", old.absolutePath());
+            synchronized(lock) {
+                map.clear();
+                for(String key : old.keys()) {
+                    String val = old.get(key, null);
+                    if(val != null)
+                        map.put(key, val);
+                }
+                legacy = old;
+                compact = true;
+                indexStale = true;
+            }
+            writeTask.schedule(WRITE_DELAY);
+        } catch(BackingStoreException ex) {
+            LOG.log(Level.SEVERE, null, ex);
+        }
+    }
+
+    /**
+     * Take the changes; must hold the preferences lock.
+     * @return null if nothing to write, else the changes and
+     *         the writer lock is held
+     */
+    private Batch takeChanges(boolean takeLegacy)
+    {
+        assert Thread.holdsLock(lock);
+        if(pending.isEmpty() && !historyChanged && !compact
+                && (!takeLegacy || legacy == null))
+            return null;
+        Batch b = new Batch();
+        b.compact = compact;
+        b.history = new TreeMap<Integer, String>();
+        b.others = new LinkedHashMap<String, String>();
+        for(Map.Entry<String, String> e : map.entrySet()) {
+            if(isPosition(e.getKey()))
+                b.history.put(position(e.getKey()), e.getValue());
+            else
+                b.others.put(e.getKey(), e.getValue());
+        }
+        b.records = new ArrayList<String>(pending);
+        if(takeLegacy) {
+            b.legacy = legacy;
+            legacy = null;
+        }
+        pending.clear();
+        historyChanged = false;
+        compact = false;
+        writer.lock();
+        return b;
+    }
+
+    /**
+     * Write the changes while holding the preferences lock;
+     * the migrated history is left for the background write.
+     */
+    private void writeNow()
+    {
+        writeTask.cancel();
+        Batch b = takeChanges(false);
+        if(b != null) {
+            try {
+                writeLog(b);
+            } finally {
+                writer.unlock();
+            }
+        }
+        if(legacy != null)
+            writeTask.schedule(0);
+    }
+
+    /** The background write. */
+    private void write()
+    {
+        Batch b;
+        synchronized(lock) {
+            b = takeChanges(true);
+        }
+        if(b == null)
+            return;
+        Preferences oldLegacy = null;
+        try {
+            if(writeLog(b)) {
+                oldLegacy = legacyToRemove;
+                legacyToRemove = null;
+            }
+        } finally {
+            writer.unlock();
+        }
+
+        if(oldLegacy != null) {
+            try {
+                Preferences p = oldLegacy.parent();
+                oldLegacy.removeNode();
+                p.flush();
+            } catch(BackingStoreException ex) {
+                LOG.log(Level.SEVERE, null, ex);
+            }
+        }
+    }
+
+    /**
+     * Append the changes to the log, or rewrite it.
+     * Must hold the writer lock, not necessarily the preferences lock.
+     * @return true if written
+     */
+    private boolean writeLog(Batch b)
+    {
+        assert writer.isHeldByCurrentThread();
+        if(b.legacy != null)
+            legacyToRemove = b.legacy;
+
+        List<String> history = toList(b.history);
+        List<String> records = null;
+        boolean all = b.compact || rewrite || history == null;
+        if(!all) {
+            records = historyRecords(history);
+            if(records == null)
+                all = true;
+            else {
+                records.addAll(b.records);
+                if(logRecords + records.size()
+                        > b.history.size() + b.others.size() + COMPACT_SLACK)
+                    all = true;
+            }
+        }
+        if(all) {
+            records = new ArrayList<String>();
+            records.add(String.valueOf(CLEAR));
+            for(Map.Entry<String, String> e : b.others.entrySet()) {
+                records.add(PUT + "\t" + escape(e.getKey())
+                            + "\t" + escape(e.getValue()));
+            }
+            if(history != null
+                    && new HashSet<String>(history).size() == history.size()) {
+                for(int i = history.size() - 1; i >= 0; i--) {
+                    records.add(ADD + "\t" + history.size()
+                                + "\t" + escape(history.get(i)));
+                }
+            } else {
+                for(Map.Entry<Integer, String> e : b.history.entrySet()) {
+                    records.add(PUT + "\t" + e.getKey()
+                                + "\t" + escape(e.getValue()));
+                }
+            }
+        }
+        if(records.isEmpty())
+            return true;
+
+        try {
+            File f = getLogFile();
+            if(f == null) {
+                LOG.log(Level.WARNING, "no file for {0}", absolutePath());
+                return false;
+            }
+            Writer w = new OutputStreamWriter(
+                    new FileOutputStream(f, !all), "UTF-8");
+            try {
+                for(String rec : records) {
+                    w.write(rec);
+                    w.write('\n');
+                }
+            } finally {
+                w.close();
+            }
+        } catch(IOException ex) {
+            LOG.log(Level.SEVERE, null, ex);
+            // rewrite everything next time
+            rewrite = true;
+            return false;
+        }
+        logRecords = all ? records.size() : logRecords + records.size();
+        written = history;
+        rewrite = false;
+        return true;
+    }
+
+    /** @return the history newest first, null if there are missing positions */
+    private static List<String> toList(SortedMap<Integer, String> history)
+    {
+        if(!history.isEmpty() && history.lastKey() != history.size() - 1)
+            return null;
+        return new ArrayList<String>(history.values());
+    }
+
+    /**
+     * Find the records that take the written history to history;
+     * usually the new commands have been added to the front
+     * and maybe the oldest dropped.
+     * @return the records, or null if the log should be rewritten
+     */
+    private List<String> historyRecords(List<String> history)
+    {
+        if(written == null)
+            return null;
+        int size = history.size();
+        for(int added = 0; added <= Math.min(MAX_ADDED, size); added++) {
+            List<String> l = new ArrayList<String>(written);
+            for(int i = added - 1; i >= 0; i--) {
+                add(l, history.get(i), size);
+            }
+            if(l.size() < size || !l.subList(0, size).equals(history))
+                continue;
+            List<String> records = new ArrayList<String>();
+            for(int i = added - 1; i >= 0; i--) {
+                records.add(ADD + "\t" + size + "\t" + escape(history.get(i)));
+            }
+            if(l.size() > size)
+                records.add(TRUNCATE + "\t" + size);
+            return records;
+        }
+        return null;
+    }
+
+    /** Children of history nodes, held in memory. */
+    private static class MemoryPreferences extends AbstractPreferences
+    {
+        private final Map<String, String> map = new HashMap<String, String>();
+
+        MemoryPreferences(AbstractPreferences parent, String name)
+        {
+            super(parent, name);
+        }
+
+        @Override
+        protected void putSpi(String key, String value)
+        {
+            map.put(key, value);
+        }
+
+        @Override
+        protected String getSpi(String key)
+        {
+            return map.get(key);
+        }
+
+        @Override
+        protected void removeSpi(String key)
+        {
+            map.remove(key);
+        }
+
+        @Override
+        protected void removeNodeSpi() throws BackingStoreException
+        {
+            map.clear();
+        }
+
+        @Override
+        protected String[] keysSpi() throws BackingStoreException
+        {
+            return map.keySet().toArray(new String[map.size()]);
+        }
+
+        @Override
+        protected String[] childrenNamesSpi() throws BackingStoreException
+        {
+            return new String[0];
+        }
+
+        @Override
+        protected AbstractPreferences childSpi(String name)
+        {
+            return new MemoryPreferences(this, name);
+        }
+
+        @Override
+        protected void syncSpi() throws BackingStoreException
+        {
+        }
+
+        @Override
+        protected void flushSpi() throws BackingStoreException
+        {
+        }
+    }
+
+    private static String escape(String s)
+    {
+        StringBuilder sb = new StringBuilder(s.length());
+        for(int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            switch(c) {
+            case '\\': sb.append("\\\\"); break;
+            case '\t': sb.append("\\t"); break;
+            case '\n': sb.append("\\n"); break;
+            case '\r': sb.append("\\r"); break;
+            default:   sb.append(c); break;
+            }
+        }
+        return sb.toString();
+    }
+
+    private static String unescape(String s)
+    {
+        if(s.indexOf('\\') < 0)
+            return s;
+        StringBuilder sb = new StringBuilder(s.length());
+        for(int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if(c == '\\' && i + 1 < s.length()) {
+                c = s.charAt(++i);
+                switch(c) {
+                case 't': c = '\t'; break;
+                case 'n': c = '\n'; break;
+                case 'r': c = '\r'; break;
+                }
+            }
+            sb.append(c);
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,432 @@
+/*
+ * The contents of this file are subject to the Mozilla Public
+ * License Version 1.1 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of
+ * the License at http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS
+ * IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * rights and limitations under the License.
+ *
+ * The Original Code is jvi - vi editor clone.
+ *
+ * The Initial Developer of the Original Code is Ernie Rael.
+ * Portions created by Ernie Rael are
+ * Copyright (C) 2011 Ernie Rael.  All Rights Reserved.
+ *
+ * Contributor(s): Ernie Rael <err@raelity.com>
+ */
+
+package org.netbeans.modules.jvi.impl;
+
+import java.awt.EventQueue;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.awt.event.KeyEvent;
+import java.awt.event.KeyListener;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.swing.Action;
+import javax.swing.JComponent;
+import javax.swing.KeyStroke;
+import javax.swing.text.JTextComponent;
+import javax.swing.text.Keymap;
+
+import com.raelity.jvi.ViCaret;
+import com.raelity.jvi.ViOutputStream;
+import com.raelity.jvi.ViTextView;
+import com.raelity.jvi.core.ColonCommands;
+import com.raelity.jvi.core.ColonCommands.ColonEvent;
+import com.raelity.jvi.core.Edit;
+import com.raelity.jvi.core.G;
+import com.raelity.jvi.core.Msg;
+import com.raelity.jvi.core.lib.CcFlag;
+import com.raelity.jvi.manager.ViManager;
+import com.raelity.jvi.swing.SwingFactory;
+
+/**
+ * Keystroke latency, from the KeyEvent's timestamp until the
+ * keystroke has been handled and the resulting repaint is done,
+ * kept in a histogram for each mode.
+ * <p/>
+ * Only the keystrokes that go to jVi's EnqueKeyAction or
+ * EnqueCharAction are measured, and the keystrokes of the command line.
+ * A KeyListener sees the event before the action runs;
+ * the time is taken by an invokeLater that is posted again, so that it
+ * runs after the repaint the keystroke caused.
+ * <p/>
+ * The histogram is like HdrHistogram: buckets have 4 bits of
+ * precision, so a value is off by at most 1/16.
+ * <p/>
+ * Nothing is measured until ":keylatency on", or the bean is enabled;
+ * ":keylatency off" stops it. Displayed with ":keylatency",
+ * ":keylatency reset" clears it; also available through JMX
+ * as {@value #JMX_NAME}.
+ *
+ * @author Ernie Rael <err at raelity.com>
+ */
+public final class KeyLatency
+{
+    private static final Logger LOG = Logger.getLogger(KeyLatency.class.getName());
+
+    public static final String JMX_NAME
+            = "org.netbeans.modules.jvi:type=KeyLatency";
+
+    public enum Mode { NORMAL, INSERT, VISUAL, CMDLINE }
+
+    private static final Histogram[] histograms;
+    static {
+        histograms = new Histogram[Mode.values().length];
+        for(int i = 0; i < histograms.length; i++) {
+            histograms[i] = new Histogram();
+        }
+    }
+
+    /** only measure when this is set */
+    private static volatile boolean enabled;
+
+    private KeyLatency() { }
+
+    /**
+     * JMX view of the histograms; times are in milliseconds.
+     */
+    public interface KeyLatencyMXBean
+    {
+        /** the lines shown by ":keylatency" */
+        String[] getSummary();
+        long getCount(String mode);
+        double getPercentile(String mode, double percentile);
+        double getMax(String mode);
+        void reset();
+        boolean isEnabled();
+        void setEnabled(boolean enabled);
+    }
+
+    private static class Bean implements KeyLatencyMXBean
+    {
+        @Override
+        public String[] getSummary()
+        {
+            List<String> l = summary();
+            return l.toArray(new String[l.size()]);
+        }
+
+        @Override
+        public long getCount(String mode)
+        {
+            return get(Mode.valueOf(mode)).getCount();
+        }
+
+        @Override
+        public double getPercentile(String mode, double percentile)
+        {
+            return get(Mode.valueOf(mode)).getPercentile(percentile) / 1000.0;
+        }
+
+        @Override
+        public double getMax(String mode)
+        {
+            return get(Mode.valueOf(mode)).getMax() / 1000.0;
+        }
+
+        @Override
+        public void reset()
+        {
+            KeyLatency.reset();
+        }
+
+        @Override
+        public boolean isEnabled()
+        {
+            return enabled;
+        }
+
+        @Override
+        public void setEnabled(boolean enabled)
+        {
+            KeyLatency.enabled = enabled;
+        }
+    }
+
+    public static void init()
+    {
+        ColonCommands.register("keyl", "keylatency", new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e)
+            {
+                ColonEvent ce = (ColonEvent)e;
+                String arg = ce.getNArg() == 1 ? ce.getArg(1) : null;
+                if(ce.getNArg() == 0)
+                    display();
+                else if("reset".equals(arg))
+                    reset();
+                else if("on".equals(arg))
+                    enabled = true;
+                else if("off".equals(arg))
+                    enabled = false;
+                else
+                    Msg.emsg("usage: keylatency [on|off|reset]");
+            }
+        }, EnumSet.of(CcFlag.DBG));
+
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(
+                    new Bean(), new ObjectName(JMX_NAME));
+        } catch(JMException ex) {
+            LOG.log(Level.SEVERE, null, ex);
+        }
+    }
+
+    /** take the bean out of the platform MBeanServer */
+    public static void unregister()
+    {
+        enabled = false;
+        try {
+            ObjectName name = new ObjectName(JMX_NAME);
+            MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+            if(mbs.isRegistered(name))
+                mbs.unregisterMBean(name);
+        } catch(JMException ex) {
+            LOG.log(Level.SEVERE, null, ex);
+        }
+    }
+
+    static Histogram get(Mode mode)
+    {
+        return histograms[mode.ordinal()];
+    }
+
+    static void reset()
+    {
+        for(Histogram h : histograms) {
+            h.reset();
+        }
+    }
+
+    static List<String> summary()
+    {
+        List<String> l = new ArrayList<String>();
+        l.add(String.format("%-8s %8s %8s %8s %8s %8s %8s",
+                            "mode", "count", "p50", "p90",
+                            "p99", "p99.9", "max"));
+        for(Mode mode : Mode.values()) {
+            Histogram h = get(mode);
+            l.add(String.format("%-8s %8d %8.2f %8.2f %8.2f %8.2f %8.2f",
+                                mode.name().toLowerCase(),
+                                h.getCount(),
+                                h.getPercentile(50) / 1000.0,
+                                h.getPercentile(90) / 1000.0,
+                                h.getPercentile(99) / 1000.0,
+                                h.getPercentile(99.9) / 1000.0,
+                                h.getMax() / 1000.0));
+        }
+        return l;
+    }
+
+    private static void display()
+    {
+        ViOutputStream vios = ViManager.createOutputStream(
+                null, ViOutputStream.OUTPUT, "keystroke latency (ms)"
+                        + (enabled ? "" : ", off"));
+        for(String s : summary()) {
+            vios.println(s);
+        }
+        vios.close();
+    }
+
+    /** measure the jVi keystrokes of this editor */
+    public static void install(JTextComponent jtc)
+    {
+        jtc.addKeyListener(editorListener);
+    }
+
+    public static void uninstall(JTextComponent jtc)
+    {
+        jtc.removeKeyListener(editorListener);
+    }
+
+    /** measure the keystrokes of a command line entry */
+    static void installCmdEntry(JComponent c)
+    {
+        if(!Arrays.asList(c.getKeyListeners()).contains(cmdEntryListener))
+            c.addKeyListener(cmdEntryListener);
+    }
+
+    private static final KeyListener editorListener = new KeyListener() {
+        @Override
+        public void keyTyped(KeyEvent e)
+        {
+            if(!enabled)
+                return;
+            JTextComponent jtc = (JTextComponent)e.getComponent();
+            if(!(jtc.getCaret() instanceof ViCaret))
+                return;
+            Keymap km = jtc.getKeymap();
+            if(km == null)
+                return;
+            Action a = km.getAction(KeyStroke.getKeyStrokeForEvent(e));
+            if(a == null)
+                a = km.getDefaultAction();
+            if(a instanceof SwingFactory.EnqueCharAction)
+                measure(e, currentMode());
+        }
+
+        @Override
+        public void keyPressed(KeyEvent e)
+        {
+            if(!enabled)
+                return;
+            JTextComponent jtc = (JTextComponent)e.getComponent();
+            if(!(jtc.getCaret() instanceof ViCaret))
+                return;
+            Keymap km = jtc.getKeymap();
+            if(km != null && km.getAction(KeyStroke.getKeyStrokeForEvent(e))
+                                instanceof SwingFactory.EnqueKeyAction)
+                measure(e, currentMode());
+        }
+
+        @Override
+        public void keyReleased(KeyEvent e) { }
+    };
+
+    private static final KeyListener cmdEntryListener = new KeyListener() {
+        @Override
+        public void keyPressed(KeyEvent e)
+        {
+            if(!enabled)
+                return;
+            switch(e.getKeyCode()) {
+            case KeyEvent.VK_SHIFT:
+            case KeyEvent.VK_CONTROL:
+            case KeyEvent.VK_ALT:
+            case KeyEvent.VK_META:
+                return;
+            }
+            measure(e, Mode.CMDLINE);
+        }
+
+        @Override
+        public void keyTyped(KeyEvent e) { }
+
+        @Override
+        public void keyReleased(KeyEvent e) { }
+    };
+
+    private static Mode currentMode()
+    {
+        if(G.VIsual_active())
+            return Mode.VISUAL;
+        ViTextView tv = G.curwin();
+        if(tv != null && tv.getStatusDisplay() instanceof NbStatusDisplay) {
+            String mode = ((NbStatusDisplay)tv.getStatusDisplay()).getMode();
+            if(mode.equals(Edit.VI_MODE_INSERT)
+                    || mode.equals(Edit.VI_MODE_REPLACE))
+                return Mode.INSERT;
+        }
+        return Mode.NORMAL;
+    }
+
+    private static void measure(KeyEvent e, final Mode mode)
+    {
+        // the event's time is only in millis, after that use nanos
+        final long queued = Math.max(0,
+                        (System.currentTimeMillis() - e.getWhen()) * 1000);
+        final long t0 = System.nanoTime();
+        EventQueue.invokeLater(new Runnable() {
+            private boolean handled;
+            @Override
+            public void run()
+            {
+                if(!handled) {
+                    // the keystroke is done, get behind its repaint
+                    handled = true;
+                    EventQueue.invokeLater(this);
+                    return;
+                }
+                get(mode).record(queued + (System.nanoTime() - t0) / 1000);
+            }
+        });
+    }
+
+    /**
+     * Counts of values in microseconds. Values below 16 have a bucket
+     * each; after that each power of 2 has 16 buckets.
+     */
+    static class Histogram
+    {
+        private static final int SUB_BITS = 4;
+        private static final int SUB = 1 << SUB_BITS;
+
+        private final long[] counts = new long[(64 - SUB_BITS + 1) * SUB];
+        private long count;
+        private long max;
+
+        private static int index(long v)
+        {
+            if(v < SUB)
+                return (int)v;
+            int exp = 63 - Long.numberOfLeadingZeros(v);
+            int sub = (int)(v >>> (exp - SUB_BITS)) & (SUB - 1);
+            return (exp - SUB_BITS + 1) * SUB + sub;
+        }
+
+        /** @return the largest value in the bucket */
+        private static long highest(int i)
+        {
+            if(i < SUB)
+                return i;
+            int exp = i / SUB + SUB_BITS - 1;
+            long sub = i % SUB;
+            return ((SUB + sub + 1) << (exp - SUB_BITS)) - 1;
+        }
+
+        synchronized void record(long v)
+        {
+            counts[index(v)]++;
+            count++;
+            if(v > max)
+                max = v;
+        }
+
+        synchronized void reset()
+        {
+            Arrays.fill(counts, 0);
+            count = 0;
+            max = 0;
+        }
+
+        synchronized long getCount()
+        {
+            return count;
+        }
+
+        synchronized long getMax()
+        {
+            return max;
+        }
+
+        synchronized long getPercentile(double percentile)
+        {
+            if(count == 0)
+                return 0;
+            long target = Math.max(1, (long)Math.ceil(count * percentile / 100));
+            long n = 0;
+            for(int i = 0; i < counts.length; i++) {
+                n += counts[i];
+                if(n >= target)
+                    return Math.min(highest(i), max);
+            }
+            return max;
+        }
+    }
+}
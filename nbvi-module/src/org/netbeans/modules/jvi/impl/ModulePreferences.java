@@ -0,0 +1,201 @@
+/*
+ * The contents of this file are subject to the Mozilla Public
+ * License Version 1.1 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of
+ * the License at http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS
+ * IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * rights and limitations under the License.
+ *
+ * The Original Code is jvi - vi editor clone.
+ *
+ * The Initial Developer of the Original Code is Ernie Rael.
+ * Portions created by Ernie Rael are
+ * Copyright (C) 2011 Ernie Rael.  All Rights Reserved.
+ *
+ * Contributor(s): Ernie Rael <err@raelity.com>
+ */
+package org.netbeans.modules.jvi.impl;
+
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.prefs.AbstractPreferences;
+import java.util.prefs.BackingStoreException;
+import java.util.prefs.NodeChangeListener;
+import java.util.prefs.PreferenceChangeListener;
+import java.util.prefs.Preferences;
+
+/**
+ * The jVi module preferences as handed out by the factory.
+ * Everything goes to the NetBeans module preferences except for the
+ * "registers" subtree, which is handled by {@link RegisterPreferences},
+ * and the "commands" and "search" history, handled by
+ * {@link HistoryPreferences}.
+ * <p/>
+ * Other nodes are the NetBeans nodes, and listeners are added to the
+ * NetBeans node; so changes made directly to the NetBeans preferences,
+ * for example by the options dialog, are still seen.
+ *
+ * @author Ernie Rael <err at raelity.com>
+ */
+final class ModulePreferences extends AbstractPreferences
+{
+    /** replaced by an empty node of the same path by removeNode */
+    private volatile Preferences delegate;
+
+    ModulePreferences(Preferences delegate)
+    {
+        super(null, "");
+        this.delegate = delegate;
+    }
+
+    /** @return true if path is handled here, not by NetBeans */
+    private static boolean isLocal(String path)
+    {
+        int idx = path.indexOf('/');
+        String name = idx < 0 ? path : path.substring(0, idx);
+        return name.equals(RegisterPreferences.NODE)
+                || HistoryPreferences.isHistory(name);
+    }
+
+    @Override
+    public Preferences node(String path)
+    {
+        return isLocal(path) ? super.node(path) : delegate.node(path);
+    }
+
+    @Override
+    public boolean nodeExists(String path) throws BackingStoreException
+    {
+        return isLocal(path) ? super.nodeExists(path)
+                             : delegate.nodeExists(path);
+    }
+
+    @Override
+    public String name()
+    {
+        return delegate.name();
+    }
+
+    @Override
+    public String absolutePath()
+    {
+        return delegate.absolutePath();
+    }
+
+    @Override
+    public boolean isUserNode()
+    {
+        return delegate.isUserNode();
+    }
+
+    @Override
+    public void addPreferenceChangeListener(PreferenceChangeListener pcl)
+    {
+        delegate.addPreferenceChangeListener(pcl);
+    }
+
+    @Override
+    public void removePreferenceChangeListener(PreferenceChangeListener pcl)
+    {
+        delegate.removePreferenceChangeListener(pcl);
+    }
+
+    @Override
+    public void addNodeChangeListener(NodeChangeListener ncl)
+    {
+        delegate.addNodeChangeListener(ncl);
+    }
+
+    @Override
+    public void removeNodeChangeListener(NodeChangeListener ncl)
+    {
+        delegate.removeNodeChangeListener(ncl);
+    }
+
+    @Override
+    protected void putSpi(String key, String value)
+    {
+        delegate.put(key, value);
+    }
+
+    @Override
+    protected String getSpi(String key)
+    {
+        return delegate.get(key, null);
+    }
+
+    @Override
+    protected void removeSpi(String key)
+    {
+        delegate.remove(key);
+    }
+
+    /**
+     * This is the root of its tree, so AbstractPreferences won't remove it;
+     * remove the local nodes, then the NetBeans node. This node stays
+     * usable, it is kept by the factory; afterwards it is empty and
+     * delegates to a new NetBeans node with the same path.
+     */
+    @Override
+    public void removeNode() throws BackingStoreException
+    {
+        synchronized(lock) {
+            node(RegisterPreferences.NODE).removeNode();
+            node(HistoryPreferences.COMMANDS).removeNode();
+            node(HistoryPreferences.SEARCH).removeNode();
+            removeNodeSpi();
+        }
+    }
+
+    @Override
+    protected void removeNodeSpi() throws BackingStoreException
+    {
+        Preferences parent = delegate.parent();
+        String name = delegate.name();
+        delegate.removeNode();
+        delegate = parent.node(name);
+    }
+
+    @Override
+    protected String[] keysSpi() throws BackingStoreException
+    {
+        return delegate.keys();
+    }
+
+    @Override
+    protected String[] childrenNamesSpi() throws BackingStoreException
+    {
+        Set<String> names = new LinkedHashSet<String>(
+                Arrays.asList(delegate.childrenNames()));
+        names.add(RegisterPreferences.NODE);
+        names.add(HistoryPreferences.COMMANDS);
+        names.add(HistoryPreferences.SEARCH);
+        return names.toArray(new String[names.size()]);
+    }
+
+    @Override
+    protected AbstractPreferences childSpi(String name)
+    {
+        if(RegisterPreferences.NODE.equals(name))
+            return new RegisterPreferences(this, delegate);
+        if(HistoryPreferences.isHistory(name))
+            return new HistoryPreferences(this, name, delegate);
+        return (AbstractPreferences)delegate.node(name);
+    }
+
+    @Override
+    protected void syncSpi() throws BackingStoreException
+    {
+        delegate.sync();
+    }
+
+    @Override
+    protected void flushSpi() throws BackingStoreException
+    {
+        delegate.flush();
+    }
+}
@@ -23,7 +23,9 @@ package org.netbeans.modules.jvi.impl;
 import java.awt.Component;
 import java.awt.EventQueue;
 import java.util.Collections;
+import java.util.Map;
 import java.util.Set;
+import java.util.WeakHashMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -73,6 +75,16 @@ public class NbAppView implements ViAppView
     private static int genWNum; // for the generation of the unique nums
     private static int genNomadNum; // give nomads a unique num
 
+    /**
+     * The app views of a top component. The editor to app view is the
+     * editor's PROP_AV client property. The sets are weak, like when
+     * the set was a client property of the top component;
+     * the app views are held by AppViews and the editors.
+     * Only used from the event thread.
+     */
+    private static final Map<TopComponent, Set<NbAppView>> tcAppViews
+            = new WeakHashMap<TopComponent, Set<NbAppView>>();
+
     private NbAppView(TopComponent tc, JEditorPane ep, boolean isNomad)
     {
         this.tc = tc;
@@ -158,7 +170,7 @@ public class NbAppView implements ViAppView
 
     public static void closeTC(TopComponent tc)
     {
-        tc.putClientProperty(SwingFactory.PROP_AV, null);
+        tcAppViews.remove(tc);
     }
 
     /**
@@ -211,15 +223,10 @@ public class NbAppView implements ViAppView
             av = createAppViewOrphan(ep);
         } else {
             // make sure the TC has the set.
-            {
-                @SuppressWarnings("unchecked")
-                Set<NbAppView> s01 = (Set<NbAppView>)
-                        tc.getClientProperty(SwingFactory.PROP_AV);
-                s = s01;
-                if(s == null) {
-                    s = new WeakSet<NbAppView>(1);
-                    tc.putClientProperty(SwingFactory.PROP_AV, s);
-                }
+            s = tcAppViews.get(tc);
+            if(s == null) {
+                s = new WeakSet<NbAppView>(1);
+                tcAppViews.put(tc, s);
             }
 
             if(ep == null) {
@@ -397,22 +404,17 @@ public class NbAppView implements ViAppView
     }
 
     public static Set<NbAppView> fetchAvFromTC(TopComponent tc) { // NEEDSWORK: into av
-        @SuppressWarnings("unchecked")
-        Set<NbAppView> s = (Set<NbAppView>)tc
-                .getClientProperty(SwingFactory.PROP_AV);
+        Set<NbAppView> s = tcAppViews.get(tc);
         if(s != null)
             return s;
         return Collections.emptySet();
     }
 
+    /** @return the app view of ep if it belongs to tc, else null */
     public static NbAppView fetchAvFromTC(TopComponent tc, JEditorPane ep) {
-        if(tc == null)
-            return getAppView(ep);
-        for (NbAppView av : fetchAvFromTC(tc)) {
-            if(av.getEditor() == ep)
-                return av;
-
-        }
+        NbAppView av = getAppView(ep);
+        if(tc == null || av != null && av.tc == tc)
+            return av;
         return null;
     }
 
@@ -9,6 +9,8 @@
 
 package org.netbeans.modules.jvi.impl;
 
+import java.beans.PropertyChangeEvent;
+import java.beans.PropertyChangeListener;
 import java.io.File;
 import java.util.Arrays;
 import java.util.HashMap;
@@ -44,7 +46,12 @@ import org.netbeans.modules.editor.indent.api.IndentUtils;
 import org.netbeans.modules.editor.indent.api.Reformat;
 import org.openide.actions.UndoAction;
 import org.openide.awt.UndoRedo;
+import org.openide.filesystems.FileAttributeEvent;
+import org.openide.filesystems.FileChangeAdapter;
+import org.openide.filesystems.FileChangeListener;
+import org.openide.filesystems.FileEvent;
 import org.openide.filesystems.FileObject;
+import org.openide.filesystems.FileRenameEvent;
 import org.openide.filesystems.FileUtil;
 import org.openide.loaders.DataObject;
 import org.openide.text.CloneableEditorSupport;
@@ -83,15 +90,17 @@ public class NbBuffer extends SwingBuffer {
         // Without tracking all the mimeTypes,
         // set the blink rate with the buffer; this
         // is too often, but it almost never changes.
-        Preferences prefs = ViManager.getFactory().getPreferences();
-        prefs.addPreferenceChangeListener(WeakListeners.create(
-                PreferenceChangeListener.class, prefsListener, prefs));
+        // Only changes of the blink rate are dispatched to the buffer.
+        PrefsDispatcher.subscribe(Options.caretBlinkRate, prefsListener);
     }
 
     @Override
     public void removeShare() {
-        if(getShare() == 1)
+        if(getShare() == 1) {
             stopDocumentEvents();
+            stopMetaEvents();
+            PrefsDispatcher.unsubscribe(Options.caretBlinkRate, prefsListener);
+        }
         super.removeShare();
     }
 
@@ -100,9 +109,7 @@ public class NbBuffer extends SwingBuffer {
         @Override
         public void preferenceChange(PreferenceChangeEvent evt)
         {
-            if(evt.getKey().equals(Options.caretBlinkRate)) {
-                setBlinkRate();
-            }
+            setBlinkRate();
         }
     };
 
@@ -199,16 +206,169 @@ public class NbBuffer extends SwingBuffer {
     @Override
     public File getFile() {
         // NEEDSWORK: see NbFactory.isNomadic
-        File fi = null;
-        Document doc = getDocument();
-        if(doc != null) {
-            FileObject fo = NbEditorUtilities.getFileObject(doc);
-            if(fo != null){
-                fi = FileUtil.toFile(fo);
+        return getMeta().file;
+    }
+
+    //////////////////////////////////////////////////////////////////////
+    //
+    // File metadata.
+    //
+    // The mode line and commands ask for the file, name, read only and
+    // modified often. Look them up once, the DataObject and FileObject
+    // events invalidate.
+    //
+
+    private static final class Meta {
+        final DataObject dobj;
+        final FileObject fo;
+        final File file;
+        final String name;
+        final boolean readOnly;
+        final boolean modified;
+
+        Meta(Document doc) {
+            FileObject fo01 = null;
+            DataObject dobj01 = null;
+            String name01 = null;
+            if(doc != null) {
+                fo01 = NbEditorUtilities.getFileObject(doc);
+                if(fo01 != null) {
+                    dobj01 = NbEditorUtilities.getDataObject(doc);
+                    name01 = fo01.getNameExt();
+                }
+                if(name01 == null) {
+                    Object o = doc.getProperty(Document.TitleProperty);
+                    if(o != null)
+                        name01 = o.toString();
+                }
+            }
+            fo = fo01;
+            dobj = dobj01;
+            file = fo == null ? null : FileUtil.toFile(fo);
+            name = name01;
+            readOnly = fo != null && !fo.canWrite();
+            modified = dobj != null ? dobj.isModified() : true;
+        }
+    }
+
+    private volatile Meta meta;
+    private volatile int metaGeneration;
+    private DataObject listenDobj;
+    private FileObject listenFo;
+    private PropertyChangeListener weakDobjListener;
+    private FileChangeListener weakFoListener;
+
+    private Meta getMeta() {
+        Meta m = meta;
+        if(m == null) {
+            int gen = metaGeneration;
+            m = new Meta(getDocument());
+            listenMeta(m);
+            synchronized(this) {
+                // if something changed while looking, then don't keep it
+                if(gen == metaGeneration)
+                    meta = m;
+            }
+        }
+        return m;
+    }
+
+    private synchronized void invalidateMeta() {
+        metaGeneration++;
+        meta = null;
+    }
+
+    /** @return null if no file or title */
+    String getDisplayName() {
+        return getMeta().name;
+    }
+
+    boolean isReadOnly() {
+        return getMeta().readOnly;
+    }
+
+    boolean isModified() {
+        return getMeta().modified;
+    }
+
+    private synchronized void listenMeta(Meta m) {
+        if(m.dobj != listenDobj) {
+            if(listenDobj != null)
+                listenDobj.removePropertyChangeListener(weakDobjListener);
+            listenDobj = m.dobj;
+            weakDobjListener = null;
+            if(listenDobj != null) {
+                weakDobjListener = WeakListeners.propertyChange(
+                        dobjListener, listenDobj);
+                listenDobj.addPropertyChangeListener(weakDobjListener);
+            }
+        }
+        if(m.fo != listenFo) {
+            if(listenFo != null)
+                listenFo.removeFileChangeListener(weakFoListener);
+            listenFo = m.fo;
+            weakFoListener = null;
+            if(listenFo != null) {
+                weakFoListener = FileUtil.weakFileChangeListener(
+                        foListener, listenFo);
+                listenFo.addFileChangeListener(weakFoListener);
             }
         }
-        return fi;
     }
+
+    private synchronized void stopMetaEvents() {
+        if(listenDobj != null)
+            listenDobj.removePropertyChangeListener(weakDobjListener);
+        if(listenFo != null)
+            listenFo.removeFileChangeListener(weakFoListener);
+        listenDobj = null;
+        listenFo = null;
+        weakDobjListener = null;
+        weakFoListener = null;
+        invalidateMeta();
+    }
+
+    private final PropertyChangeListener dobjListener
+            = new PropertyChangeListener() {
+        @Override
+        public void propertyChange(PropertyChangeEvent evt)
+        {
+            String pname = evt.getPropertyName();
+            if(pname == null
+                    || DataObject.PROP_MODIFIED.equals(pname)
+                    || DataObject.PROP_PRIMARY_FILE.equals(pname)
+                    || DataObject.PROP_NAME.equals(pname)
+                    || DataObject.PROP_VALID.equals(pname))
+                invalidateMeta();
+        }
+    };
+
+    private final FileChangeListener foListener = new FileChangeAdapter() {
+        @Override
+        public void fileRenamed(FileRenameEvent fe)
+        {
+            invalidateMeta();
+        }
+
+        @Override
+        public void fileDeleted(FileEvent fe)
+        {
+            invalidateMeta();
+        }
+
+        @Override
+        public void fileAttributeChanged(FileAttributeEvent fe)
+        {
+            // might be writable/readonly
+            invalidateMeta();
+        }
+
+        @Override
+        public void fileChanged(FileEvent fe)
+        {
+            invalidateMeta();
+        }
+    };
     
     //////////////////////////////////////////////////////////////////////
     //
@@ -72,7 +72,9 @@ public class NbFS extends abstractFS
     private String findName(ViBuffer buf)
     {
         String s = null;
-        if(buf != null)
+        if(buf instanceof NbBuffer)
+            s = ((NbBuffer)buf).getDisplayName();
+        else if(buf != null)
             s = findName((Document)buf.getDocument());
         return s;
     }
@@ -95,20 +97,22 @@ public class NbFS extends abstractFS
 
     @Override
     public String getDisplayFileName(ViBuffer buf) {
-        String s = null;
-        if(buf != null)
-            s = findName((Document)buf.getDocument());
+        String s = findName(buf);
         return s != null ? s : NULL_FO;
     }
 
     @Override
     public boolean isModified(ViBuffer buf) {
+        if(buf instanceof NbBuffer)
+            return ((NbBuffer)buf).isModified();
         DataObject dobj = getDataObject(buf);
         return dobj != null ? dobj.isModified() : true;
     }
 
     @Override
     public boolean isReadOnly(ViBuffer buf) {
+        if(buf instanceof NbBuffer)
+            return ((NbBuffer)buf).isReadOnly();
         FileObject fo = NbEditorUtilities.getFileObject(
                 (Document)buf.getDocument());
         return fo != null && !fo.canWrite();
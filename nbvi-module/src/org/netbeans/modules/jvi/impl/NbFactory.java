@@ -22,22 +22,23 @@ package org.netbeans.modules.jvi.impl;
 import java.awt.Component;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
+import java.lang.ref.Reference;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
-import java.util.Stack;
-import java.util.logging.Level;
+import java.util.WeakHashMap;
 import java.util.logging.Logger;
 import java.util.prefs.Preferences;
 
 import javax.swing.Action;
 import javax.swing.JEditorPane;
-import javax.swing.text.BadLocationException;
 import javax.swing.text.Caret;
 import javax.swing.text.Document;
 import javax.swing.text.Element;
 import javax.swing.text.JTextComponent;
-import javax.swing.text.Position;
 
 import org.netbeans.editor.BaseAction;
 import org.netbeans.editor.BaseDocument;
@@ -147,7 +148,7 @@ final public class NbFactory extends SwingFactory {
     @Override
     public Preferences getPreferences() {
         if(prefs == null)
-            prefs = NbPreferences.forModule(Module.class);
+            prefs = new ModulePreferences(NbPreferences.forModule(Module.class));
         return prefs;
     }
     
@@ -248,6 +249,7 @@ final public class NbFactory extends SwingFactory {
 
             NbUtil.EditorRegistryRegister(jtc);
         }
+        KeyLatency.installCmdEntry((JTextComponent)ce.getTextComponent());
 
         return ce;
     }
@@ -255,29 +257,95 @@ final public class NbFactory extends SwingFactory {
     //
     // Tag stack maintenance
     //
+    // Each window has its own tag stack, like vim. An entry does not
+    // hold on to a document, it uses the NetBeans Line which keeps
+    // track of its position when the document is closed and reopened.
+    //
     // This is all experimental, probably belongs in ViManager
     //
+
+    /** like vim's tagstack limit, the oldest entry is dropped */
+    private static final int TAGSTACK_MAX = 20;
+
+    /** One end of a tag jump. */
+    private static class TagLoc {
+        final Reference<Document> doc;
+        final String file;
+        final Line line;
+        final int col;
+        /** only good while the tag is being pushed */
+        final int offset;
+
+        TagLoc(ViTextView tv) {
+            Document d = ((JEditorPane)tv.getEditor()).getDocument();
+            doc = new WeakReference<Document>(d);
+            file = tv.getBuffer().getDisplayFileName();
+            offset = tv.getCaretPosition();
+            line = NbEditorUtilities.getLine(d, offset, false);
+            col = calcColumnOffset(d, offset);
+        }
+
+        boolean isDoc(Document d) {
+            return d != null && d == doc.get();
+        }
+
+        /** @return line number, one based; closed files are not opened */
+        int getLineNumber() {
+            return line.getLineNumber() + 1;
+        }
+
+        void show() {
+            line.show(Line.ShowOpenType.OPEN,
+                      Line.ShowVisibilityType.FOCUS, col);
+        }
+    }
+
     private static class Tag {
         String toIdent;
-        
-        Document toDoc;
-        Position toPosition;
-        //int toLine;
-        Line toLine;
-        
-        Document fromDoc;
-        Position fromPosition;
-        //int fromLine;
-        Line fromLine;
-        String fromFile;
+        TagLoc to;
+        TagLoc from;
 
         boolean old_KeyTyped;
     }
-    
-    private static final Stack<Tag> tagStack = new Stack<Tag>();
-    private static int iActiveTag;
+
+    private static class TagStack {
+        final List<Tag> tags;
+        int iActiveTag;
+
+        TagStack() {
+            tags = new ArrayList<Tag>();
+        }
+
+        TagStack(TagStack ts) {
+            tags = new ArrayList<Tag>(ts.tags);
+            iActiveTag = ts.iActiveTag;
+        }
+
+        void push(Tag tag) {
+            tags.subList(iActiveTag, tags.size()).clear();
+            tags.add(tag);
+            if(tags.size() > TAGSTACK_MAX)
+                tags.remove(0);
+            iActiveTag = tags.size();
+        }
+    }
+
+    /** the tag stack of each window, only used from the event thread */
+    private static final Map<ViAppView, TagStack> tagStacks
+            = new WeakHashMap<ViAppView, TagStack>();
+
+    private static TagStack getTagStack(ViTextView tv) {
+        ViAppView av = tv.getAppView();
+        TagStack ts = tagStacks.get(av);
+        if(ts == null) {
+            ts = new TagStack();
+            tagStacks.put(av, ts);
+        }
+        return ts;
+    }
     
     private static Tag pushingTag;
+    private static TagStack pushingStack;
     private static final ActionListener finishTagPush = new ActionListener()
             {
                 @Override
@@ -293,98 +361,81 @@ final public class NbFactory extends SwingFactory {
         return offset - o;
     }
     
-    private static void fillTagFrom(Tag tag, ViTextView tv) {
-        tag.fromDoc = ((JEditorPane)tv.getEditor()).getDocument();
-        tag.fromFile = tv.getBuffer().getDisplayFileName();
-        try {
-            tag.fromPosition = tag.fromDoc.createPosition(tv.getCaretPosition());
-        } catch (BadLocationException ex) {
-            LOG.log(Level.SEVERE, null, ex);
-        }
-        tag.fromLine = NbEditorUtilities.getLine(
-                tag.fromDoc, tag.fromPosition.getOffset(), false);
-    }
-    
     @Override
     public void displayTags() {
         String heading = "  # TO tag         FROM line  in file/line";
         
+        ViTextView tv = G.curwin();
+        TagStack ts = getTagStack(tv);
+        Document curDoc = ((JEditorPane)tv.getEditor()).getDocument();
         ViOutputStream vios = ViManager.createOutputStream(
                 null, ViOutputStream.OUTPUT, heading);
        //vios.println(heading); 
-       for(int i = 0; i < tagStack.size(); i++) {
-           Tag tag = tagStack.get(i);
-           String fromData = tag.fromFile;
+       for(int i = 0; i < ts.tags.size(); i++) {
+           Tag tag = ts.tags.get(i);
+           String fromData = tag.from.file;
+           int fromLine = tag.from.getLineNumber();
            // If the from tag is the current file, show the document's line
-            ViTextView tv = G.curwin();
-            if(((JEditorPane)tv.getEditor())
-                    .getDocument().equals(tag.fromDoc)) {
-                String s = tv.getBuffer().getLineSegment(
-                                    tag.fromLine.getLineNumber() +1).toString();
+            if(tag.from.isDoc(curDoc)) {
+                String s = tv.getBuffer().getLineSegment(fromLine).toString();
                 fromData = s.trim();
             }
             vios.println(String.format(
                          "%1s%2s %-18s %5d %s",
-                         i == iActiveTag ? ">" : "",
+                         i == ts.iActiveTag ? ">" : "",
                          i+1,
                          tag.toIdent,
-                         tag.fromLine.getLineNumber() +1,
+                         fromLine,
                          fromData
                          ));
        }
-       if(iActiveTag == tagStack.size())
+       if(ts.iActiveTag == ts.tags.size())
            vios.println(">");
        vios.close();
     }
     
     @Override
     public void tagStack(TAGOP op, int count) {
+        TagStack ts = getTagStack(G.curwin());
         switch(op) {
         case OLDER: // ^T
         {
             boolean doNothing = false;
-            if(iActiveTag <= 0) {
+            if(ts.iActiveTag <= 0) {
                 doNothing = true;
             }
-            iActiveTag -= count;
-            if(iActiveTag < 0) {
+            ts.iActiveTag -= count;
+            if(ts.iActiveTag < 0) {
                 Msg.emsg("at bottom of tag stack");
-                iActiveTag = 0;
+                ts.iActiveTag = 0;
             }
             if(doNothing)
                 break;
             
-            Tag tag = tagStack.get(iActiveTag);
-            tag.fromLine.show(Line.ShowOpenType.OPEN,
-                              Line.ShowVisibilityType.FOCUS,
-                              calcColumnOffset(tag.fromDoc,
-                                               tag.fromPosition.getOffset()));
+            Tag tag = ts.tags.get(ts.iActiveTag);
+            tag.from.show();
             break;
         }
             
         case NEWER: // :ta
         {
             boolean doNothing = false;
-            if(iActiveTag >= tagStack.size()) {
+            if(ts.iActiveTag >= ts.tags.size()) {
                 doNothing = true;
             }
-            iActiveTag += count;
-            if(iActiveTag > tagStack.size()) {
+            ts.iActiveTag += count;
+            if(ts.iActiveTag > ts.tags.size()) {
                 Msg.emsg("at top of tag stack");
-                iActiveTag = tagStack.size();
+                ts.iActiveTag = ts.tags.size();
             }
             if(doNothing) {
                 break;
             }
             
-            // Modify the target tags from field
-            Tag tag = tagStack.get(iActiveTag -1);
+            Tag tag = ts.tags.get(ts.iActiveTag -1);
             // modify the tag entry to reflect where we're coming from
-            fillTagFrom(tag, G.curwin());
-            tag.toLine.show(Line.ShowOpenType.OPEN,
-                            Line.ShowVisibilityType.FOCUS,
-                            calcColumnOffset(tag.toDoc,
-                                             tag.toPosition.getOffset()));
+            tag.from = new TagLoc(G.curwin());
+            tag.to.show();
             break;
         }
         }
@@ -403,14 +454,19 @@ final public class NbFactory extends SwingFactory {
         pushingTag = new Tag();
         pushingTag.toIdent = ident;
         pushingTag.old_KeyTyped = G.getKeyTyped();
+        pushingTag.from = new TagLoc(tv);
+        pushingStack = getTagStack(tv);
         
-        fillTagFrom(pushingTag, tv);
         Scheduler.putKeyStrokeTodo(finishTagPush);
     }
     
     /**
      * This is called from any number of places to indicate that an ed
      * is in use, and if a tagPush is in progress, the target has been reached.
+     * The tag goes on the stack of the window the tag op started from.
+     * If the target is in a window that has no tag stack yet, it gets
+     * a copy of that stack, somewhat like vim does for a new window;
+     * a window's own stack is never replaced.
      */
     private static void finishTagPush(ActionEvent e) {
         NbTextView tv = (NbTextView)e.getSource();
@@ -421,41 +477,47 @@ final public class NbFactory extends SwingFactory {
         if(doc == null)
             return;
                 
-        pushingTag.toDoc = doc;
-        try {
-            pushingTag.toPosition = doc.createPosition(tv.getCaretPosition());
-        } catch (BadLocationException ex) {
-            LOG.log(Level.SEVERE, null, ex);
-        }
+        pushingTag.to = new TagLoc(tv);
         
         // If at same doc and same position, then forget the tag
-        if(pushingTag.fromDoc.equals(pushingTag.toDoc)
-           && pushingTag.fromPosition.getOffset()
-                                        == pushingTag.toPosition.getOffset()) {
+        if(pushingTag.from.isDoc(doc)
+           && pushingTag.from.offset == pushingTag.to.offset) {
             // Forget it
             pushingTag = null;
+            pushingStack = null;
             return;
         }
         
-        pushingTag.toLine = NbEditorUtilities.getLine(
-                            doc, pushingTag.toPosition.getOffset(), false);
         if(pushingTag.toIdent.length() == 0) {
             // put the target file name there
-            pushingTag.toIdent = "in " + tv.getBuffer().getDisplayFileName();
+            pushingTag.toIdent = "in " + pushingTag.to.file;
         }
         
-        tagStack.setSize(iActiveTag);
-        tagStack.push(pushingTag);
-        iActiveTag++;
+        pushingStack.push(pushingTag);
+        if(!tagStacks.containsKey(tv.getAppView()))
+            tagStacks.put(tv.getAppView(), new TagStack(pushingStack));
 
         if(G.fdo_flags().contains(FDO_TAG) && pushingTag.old_KeyTyped)
             tv.foldOpenCursor(tv.w_cursor.getLine());
         
         pushingTag = null;
+        pushingStack = null;
     }
     
     @Override
     public void tagDialog(ColonCommands.ColonEvent ce) {
+        if(ce.getNArg() > 0) {
+            // ":tag ident", use the tags file
+            ViTextView tv = ce.getViTextView();
+            String ident = ce.getArg(1);
+            if(CTags.findMatches(tv, ident).isEmpty()) {
+                Msg.emsg("E426: tag not found: " + ident);
+                return;
+            }
+            startTagPush(tv, ident);
+            CTags.jumpMatch();
+            return;
+        }
         Action act = Module.fetchFileSystemAction(FsAct.GO_TYPE);
         if(act != null && act.isEnabled()) {
             ViManager.getFactory().startTagPush(ce.getViTextView(), "");
@@ -21,14 +21,18 @@ package org.netbeans.modules.jvi.impl;
 
 import java.awt.EventQueue;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.EnumSet;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.prefs.PreferenceChangeEvent;
+import java.util.prefs.PreferenceChangeListener;
 import java.util.prefs.Preferences;
 
 import javax.swing.text.Document;
@@ -40,6 +44,8 @@ import org.netbeans.api.editor.settings.SimpleValueNames;
 import org.netbeans.modules.editor.NbEditorUtilities;
 import org.netbeans.modules.editor.indent.spi.CodeStylePreferences;
 import org.netbeans.modules.jvi.JViOptionWarning;
+import org.openide.util.RequestProcessor;
+import org.openide.util.WeakListeners;
 
 import com.raelity.jvi.manager.ViManager;
 
@@ -84,44 +90,159 @@ public class NbJviPrefs
         prefType.put(SimpleValueNames.TEXT_LINE_WRAP, EnumSet.of(I.STRING, I.GLOBAL, I.WRAP));
     }
 
+    /**
+     * The values jVi has put into a NetBeans preferences node, for a
+     * document's code style or a mime type. A put is only done if
+     * the value changes; each put fans out to all the NB listeners.
+     * Changes made by someone else are tracked so they don't get
+     * hidden by a stale value.
+     */
+    private static class Written {
+        private final Map<String, String> values = new HashMap<String, String>();
+        private final PreferenceChangeListener pcl
+                = new PreferenceChangeListener() {
+            @Override
+            public void preferenceChange(PreferenceChangeEvent evt)
+            {
+                synchronized(values) {
+                    String key = evt.getKey();
+                    if(key == null)
+                        values.clear();
+                    else if(values.containsKey(key)
+                            && !values.get(key).equals(evt.getNewValue()))
+                        values.remove(key);
+                }
+            }
+        };
+
+        Written(Preferences prefs) {
+            prefs.addPreferenceChangeListener(WeakListeners.create(
+                    PreferenceChangeListener.class, pcl, prefs));
+        }
+
+        boolean isSame(String key, String val) {
+            synchronized(values) {
+                return val.equals(values.get(key));
+            }
+        }
+
+        void put(String key, String val) {
+            synchronized(values) {
+                values.put(key, val);
+            }
+        }
+    }
+
+    /** keyed by document, for STYLE */
+    private static final Map<Document, Written> writtenStyle
+            = new WeakHashMap<Document, Written>();
+    /** keyed by mime type, "" for global, for MIME and GLOBAL */
+    private static final Map<String, Written> writtenMime
+            = new HashMap<String, Written>();
+
+    /**
+     * Where a preference goes; a MIME preference only goes to the global
+     * preferences if there's no tv or b, see getMimePrefs.
+     * @return null if no preferences
+     */
+    private static Preferences getPrefs(Set<I> info, NbTextView tv, NbBuffer b)
+    {
+        if(info.contains(I.STYLE))
+            return getStylePrefs(b);
+        if(info.contains(I.MIME))
+            return getMimePrefs(tv, b);
+        return getGlobalMimePrefs();
+    }
+
+    /** @param prefs where the preference goes, from getPrefs */
+    private static synchronized Written getWritten(Set<I> info,
+                                                   String mimeType,
+                                                   NbBuffer b,
+                                                   Preferences prefs)
+    {
+        Written w;
+        if(info.contains(I.STYLE)) {
+            w = writtenStyle.get(b.getDocument());
+            if(w == null) {
+                w = new Written(prefs);
+                writtenStyle.put(b.getDocument(), w);
+            }
+        } else {
+            String k = mimeType != null ? mimeType : "";
+            w = writtenMime.get(k);
+            if(w == null) {
+                w = new Written(prefs);
+                writtenMime.put(k, w);
+            }
+        }
+        return w;
+    }
+
+    /**
+     * Put the jVi values into the NetBeans preferences.
+     * Only values that changed are written, and the writes
+     * are done together. Each put still notifies the NB listeners
+     * and NetBeans saves the nodes itself; there's no way to
+     * batch them into one flush.
+     */
     static void putPrefs(Map<String, Object> put, NbTextView tv, NbBuffer b)
     {
         String wrapKey = "";
         String wrapVal = "";
-        // NEEDSWORK: only do the "put" if something changed
-        JViOptionWarning.setInternalAction(true);
-        try {
-            for(Map.Entry<String, Object> e : put.entrySet()) {
-                Set<I> info = prefType.get(e.getKey());
-                if(b == null && tv != null)
-                    b = (NbBuffer)tv.getBuffer();
-                Preferences prefs = info.contains(I.STYLE) ? getStylePrefs(b)
-                        : info.contains(I.MIME) ? getMimePrefs(tv, b)
-                        : getGlobalMimePrefs();
-                if(prefs == null) {
-                    Logger.getLogger(NbJviPrefs.class.getName()).log(Level.SEVERE,
-                                     "No preferences for {0} tv={1}, b={2}",
-                                     new Object[] {e.getKey(), tv, b});
-                    continue;
-                }
-                if(info.contains(I.INT))
-                    prefs.putInt(e.getKey(), (Integer)e.getValue());
-                else if(info.contains(I.BOOL))
-                    prefs.putBoolean(e.getKey(), (Boolean)e.getValue());
-                else if(info.contains(I.STRING))
-                    prefs.put(e.getKey(), (String)e.getValue());
-                else
-                    assert false;
-                if(info.contains(I.WRAP)) {
-                    wrapKey = e.getKey();
-                    wrapVal = (String)e.getValue();
+        if(b == null && tv != null)
+            b = (NbBuffer)tv.getBuffer();
+
+        // collect the changes; for each one the info and where it goes
+        Map<String, Set<I>> changeInfo = new HashMap<String, Set<I>>();
+        Map<String, Written> changeWritten = new HashMap<String, Written>();
+        Map<String, Preferences> changePrefs = new HashMap<String, Preferences>();
+        for(Map.Entry<String, Object> e : put.entrySet()) {
+            Set<I> info = prefType.get(e.getKey());
+            if(info.contains(I.WRAP)) {
+                wrapKey = e.getKey();
+                wrapVal = (String)e.getValue();
+            }
+            String mimeType = info.contains(I.MIME) ? getMimeType(tv, b) : null;
+            Preferences prefs = getPrefs(info, tv, b);
+            if(prefs == null) {
+                Logger.getLogger(NbJviPrefs.class.getName()).log(Level.SEVERE,
+                                 "No preferences for {0} tv={1}, b={2}",
+                                 new Object[] {e.getKey(), tv, b});
+                continue;
+            }
+            Written w = getWritten(info, mimeType, b, prefs);
+            if(w.isSame(e.getKey(), String.valueOf(e.getValue())))
+                continue;
+            changeInfo.put(e.getKey(), info);
+            changeWritten.put(e.getKey(), w);
+            changePrefs.put(e.getKey(), prefs);
+        }
+
+        if(!changeInfo.isEmpty()) {
+            JViOptionWarning.setInternalAction(true);
+            try {
+                for(Map.Entry<String, Set<I>> e : changeInfo.entrySet()) {
+                    String key = e.getKey();
+                    Set<I> info = e.getValue();
+                    Preferences prefs = changePrefs.get(key);
+                    Object val = put.get(key);
+                    if(info.contains(I.INT))
+                        prefs.putInt(key, (Integer)val);
+                    else if(info.contains(I.BOOL))
+                        prefs.putBoolean(key, (Boolean)val);
+                    else if(info.contains(I.STRING))
+                        prefs.put(key, (String)val);
+                    else
+                        assert false;
+                    changeWritten.get(key).put(key, String.valueOf(val));
                 }
+            } finally {
+                JViOptionWarning.setInternalAction(false);
             }
-            if(!wrapKey.isEmpty())
-                setWrapPref(tv, wrapKey, wrapVal);
-        } finally {
-            JViOptionWarning.setInternalAction(false);
         }
+        // wrap is per text view, always do it
+        if(!wrapKey.isEmpty())
+            setWrapPref(tv, wrapKey, wrapVal);
     }
 
     static Preferences getStylePrefs(NbBuffer b)
@@ -145,22 +266,29 @@ public class NbJviPrefs
         if(tv == null && b == null)
             return getGlobalMimePrefs();
         Preferences prefs = null;
-        String mimeType;
+        String mimeType = getMimeType(tv, b);
+        if(mimeType != null) {
+            addUsedMime(mimeType);
+            prefs = MimeLookup.getLookup(
+                    MimePath.parse(mimeType)).lookup(Preferences.class);
+        }
+        return prefs;
+    }
+
+    /** @return the mime type of tv, or b if tv is null */
+    private static String getMimeType(NbTextView tv, NbBuffer b)
+    {
+        if(tv == null && b == null)
+            return null;
         JTextComponent jtc = null;
         Document d = null;
         if(tv != null)
             jtc = tv.getEditor();
         else if(b != null)
             d = b.getDocument();
-        mimeType = jtc != null
+        return jtc != null
                 ? NbEditorUtilities.getMimeType(jtc)
                 : NbEditorUtilities.getMimeType(d);
-        if(mimeType != null) {
-            addUsedMime(mimeType);
-            prefs = MimeLookup.getLookup(
-                    MimePath.parse(mimeType)).lookup(Preferences.class);
-        }
-        return prefs;
     }
 
     private static void setWrapPref(final NbTextView tv,
@@ -187,24 +315,59 @@ public class NbJviPrefs
     // keep used mime prefs as a colon separated list
     private static final String USED_MIME = "used_mime_prefs";
     private static final String SEP = ":";
+    private static final int SAVE_DELAY = 1000; // millis
+
+    // The used mime types are read once and kept in memory;
+    // this is on the editor activation path. They are saved in the
+    // background, and by saveUsedMimeNow when the module closes.
+    private static Set<String> usedMime;
+    private static final RequestProcessor.Task saveUsedMime
+            = new RequestProcessor(NbJviPrefs.class.getName()).create(
+                new Runnable() {
+                    @Override
+                    public void run()
+                    {
+                        setUsedMime(getUsedMime());
+                    }
+                }, true);
+
+    /**
+     * Stop the background save, waiting for it if it's running.
+     * @return true if a save was pending
+     */
+    private static boolean stopSaveUsedMime()
+    {
+        if(saveUsedMime.cancel())
+            return true;
+        saveUsedMime.waitFinished();
+        return false;
+    }
+
+    /** Save the used mime types now if there are unsaved changes. */
+    public static void saveUsedMimeNow()
+    {
+        if(stopSaveUsedMime())
+            setUsedMime(getUsedMime());
+    }
+
     private static void addUsedMime(String mt)
     {
-        Set<String> s = getUsedMime();
-        if(s.add(mt)) {
-            setUsedMime(s);
+        if(getUsedMime().add(mt)) {
+            saveUsedMime.schedule(SAVE_DELAY);
             // System.err.printf("NbJviPrefs: addUsedMime %s\n", mt);
         }
     }
 
-    private static Set<String> getUsedMime()
+    private static synchronized Set<String> getUsedMime()
     {
-        Set<String> s = new HashSet<String>();
-
-        String[] mimes = ViManager.getFactory().getPreferences()
-                                .get(USED_MIME, "").split(SEP);
-        s.addAll(Arrays.asList(mimes));
-
-        return s;
+        if(usedMime == null) {
+            usedMime = Collections.newSetFromMap(
+                    new ConcurrentHashMap<String, Boolean>());
+            String[] mimes = ViManager.getFactory().getPreferences()
+                                    .get(USED_MIME, "").split(SEP);
+            usedMime.addAll(Arrays.asList(mimes));
+        }
+        return usedMime;
     }
 
     private static void setUsedMime(Set<String> s)
@@ -234,6 +397,9 @@ public class NbJviPrefs
                 }
             }
         }
+        // a save that is running would put it back
+        stopSaveUsedMime();
+        getUsedMime().clear();
         ViManager.getFactory().getPreferences().remove(USED_MIME);
     }
 }
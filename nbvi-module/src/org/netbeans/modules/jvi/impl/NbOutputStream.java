@@ -23,6 +23,11 @@ package org.netbeans.modules.jvi.impl;
 import java.io.IOException;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -32,7 +37,10 @@ import javax.swing.text.Segment;
 import org.netbeans.modules.editor.NbEditorUtilities;
 import org.netbeans.modules.jvi.Module;
 import org.openide.awt.HtmlBrowser;
+import org.openide.cookies.LineCookie;
+import org.openide.loaders.DataObject;
 import org.openide.text.Line;
+import org.openide.util.RequestProcessor;
 import org.openide.windows.IOProvider;
 import org.openide.windows.InputOutput;
 import org.openide.windows.OutputEvent;
@@ -55,9 +63,11 @@ import com.raelity.jvi.lib.OutputStreamAdaptor;
  *      vios.close
  * </pre>
  * in particular, the vios is not kept open for long periods of time.
+ * The lines are written to the output window in the background,
+ * at most {@value #MAX_ROWS} of them.
  *
- * NEEDSWORK: NbOutputStream use NbEditorUtilities.getLine() to track links?
- *            Might as well give each line its own listener then.
+ * The hyperlinks of the lines share one listener, {@link LineRefs},
+ * the NetBeans Line is only looked up when a link is used.
  * Use Normal.nv_goto if textview still active/available.
  * NbEdUt.isDocumentActive(). Reopen file if needed.
  * @author erra
@@ -73,6 +83,7 @@ public class NbOutputStream extends OutputStreamAdaptor {
     StringBuilder sb = new StringBuilder();
     boolean fHyperlink = true;
     boolean savedSetFocusTaken;
+    LineRefs lineRefs;
     ///// NewOutputListenerImpl outputListener;
 
     private static int nOpen;
@@ -95,9 +106,12 @@ public class NbOutputStream extends OutputStreamAdaptor {
             // plain output, no hyper text stuff or files or line numbers
             String tabTag = "jVi Output";
             getIO(tabTag, false, bringUpWindow); // reuse tab
-            ow.println("-----------------------------------------------------");
+            // after what earlier streams still have queued
+            enqueue(new Row(ow,
+                    "-----------------------------------------------------",
+                    null));
             if(info != null)
-                ow.println(info);
+                enqueue(new Row(ow, info, null));
         } else {
             String sep = type.equals(ViOutputStream.SEARCH) ? "/" : "";
             String tabTag = "jVi " + sep +  (info != null ? info : "") + sep;
@@ -137,47 +151,144 @@ public class NbOutputStream extends OutputStreamAdaptor {
     public void println(int line, int col, int length) {
         if(type.equals(ViOutputStream.OUTPUT))
             return;
+        if(!roomFor())
+            return;
         Segment seg = tv.getBuffer().getLineSegment(line);
         sb.setLength(0);
         sb.append(fnTag).append(line).append(":")
             .append(seg.array, seg.offset, seg.count - 1);
-        try {
-            if(fHyperlink) {
-                ow.println(sb.toString(),
-                           getOutputListener(tv, line, col, length));
-            } else {
-                ow.println(sb.toString());
-            }
-        } catch (IOException ex) {
-            LOG.log(Level.SEVERE, null, ex);
-        }
+        OutputListener ol = fHyperlink
+                ? getOutputListener(tv, line, col, length) : null;
+        enqueue(new Row(ow, sb.toString(), ol));
     }
 
     @Override
     public void println(String s) {
-        ow.println(s);
+        if(roomFor())
+            enqueue(new Row(ow, s, null));
     }
 
     @Override
     public void printlnLink(String link, String text) {
-        try {
-            ow.println(text, new BrowserHook(link));
-        } catch (IOException ex) {
-            LOG.log(Level.SEVERE, null, ex);
-        }
+        if(roomFor())
+            enqueue(new Row(ow, text, new BrowserHook(link)));
     }
 
     @Override
     public void close() {
         io.setFocusTaken(savedSetFocusTaken);
-        ow.close();
+        enqueue(new Row(ow, null, null));
         ow = null;
         io = null;
         tv = null;
+        lineRefs = null;
         ///// outputListener = null;
         checkClose();
     }
 
+    //
+    // The lines are handed to a task that writes them to the OutputWriter,
+    // so a big listing doesn't hold up the caller, usually the EDT.
+    // All the streams share one queue and one writer task, so the lines
+    // of streams that share an output tab, like "jVi Output", are written
+    // in order and a stream's close comes after its lines. Adding to the
+    // queue never waits; MAX_ROWS limits what a stream can add.
+    //
+
+    /** the most lines put in an output tab */
+    private static final int MAX_ROWS = 100000;
+    /** the most lines handled per write */
+    private static final int BATCH_SIZE = 1024;
+
+    private static final RequestProcessor RP
+            = new RequestProcessor(NbOutputStream.class.getName());
+
+    private static final class Row {
+        final OutputWriter ow;
+        /** null closes ow */
+        final String text;
+        final OutputListener ol;
+
+        Row(OutputWriter ow, String text, OutputListener ol) {
+            this.ow = ow;
+            this.text = text;
+            this.ol = ol;
+        }
+    }
+
+    private static final BlockingQueue<Row> queue
+            = new LinkedBlockingQueue<Row>();
+    private static final RequestProcessor.Task writeTask
+            = RP.create(new Writer());
+
+    private int nRows;
+    private boolean truncated;
+
+    /** @return false if no more lines should be output */
+    private boolean roomFor() {
+        if(nRows < MAX_ROWS) {
+            nRows++;
+            return true;
+        }
+        if(!truncated) {
+            truncated = true;
+            enqueue(new Row(ow, "... output stopped after "
+                            + MAX_ROWS + " lines", null));
+        }
+        return false;
+    }
+
+    private static void enqueue(Row row) {
+        queue.add(row);
+        writeTask.schedule(0);
+    }
+
+    /**
+     * Drain the queue into the OutputWriters, consecutive plain lines
+     * for the same writer in one write. Only run by writeTask.
+     */
+    private static class Writer implements Runnable {
+        private final List<Row> batch = new ArrayList<Row>(BATCH_SIZE);
+        private final StringBuilder text = new StringBuilder();
+        /** where text goes */
+        private OutputWriter textOw;
+
+        @Override
+        public void run() {
+            while(queue.drainTo(batch, BATCH_SIZE) > 0) {
+                for(Row row : batch) {
+                    if(row.ow != textOw)
+                        flushText();
+                    if(row.text == null) {
+                        row.ow.close();
+                        continue;
+                    }
+                    if(row.ol == null) {
+                        textOw = row.ow;
+                        text.append(row.text).append('\n');
+                        continue;
+                    }
+                    flushText();
+                    try {
+                        row.ow.println(row.text, row.ol);
+                    } catch (IOException ex) {
+                        LOG.log(Level.SEVERE, null, ex);
+                    }
+                }
+                batch.clear();
+                flushText();
+            }
+        }
+
+        private void flushText() {
+            if(text.length() > 0) {
+                textOw.write(text.toString());
+                text.setLength(0);
+            }
+            textOw = null;
+        }
+    }
+
     private synchronized static void checkOpen() {
         if(nOpen > 0) {
             System.err.println("UNBALANCED OPEN/CLOSE, RESETTING.");
@@ -192,41 +303,97 @@ public class NbOutputStream extends OutputStreamAdaptor {
 
     private OutputListener getOutputListener(
             ViTextView tv, int line, int col, int length) {
-        Line nbLine = NbEditorUtilities.getLine(
-                ((Document)tv.getBuffer().getDocument()),
-                tv.getBuffer().getLineStartOffset(line),
-                false);
-        return new OutputListenerImpl(nbLine, col, length);
+        if(lineRefs == null) {
+            DataObject dobj = NbEditorUtilities.getDataObject(
+                    (Document)tv.getBuffer().getDocument());
+            if(dobj == null)
+                return null;
+            lineRefs = new LineRefs(dobj, fnTag.length());
+        }
+        lineRefs.add(line, col);
+        return lineRefs;
     }
 
-    private static class OutputListenerImpl implements OutputListener {
-        Line nbLine;
-        int col;
-        int len;
+    /**
+     * One listener for all the lines of an output tab.
+     * The line and col of each printed line are kept in arrays;
+     * the NetBeans Line is only looked up when a hyperlink is used.
+     * The line number is parsed from the output line's text,
+     * it follows the file name tag.
+     */
+    private static class LineRefs implements OutputListener {
+        private final DataObject dobj;
+        private final int tagLength;
+        private int[] lines = new int[64];
+        private int[] cols = new int[64];
+        private int n;
 
-        OutputListenerImpl(Line nbLine, int col, int len) {
-            this.nbLine = nbLine;
-            this.col = col;
-            this.len = len;
+        LineRefs(DataObject dobj, int tagLength) {
+            this.dobj = dobj;
+            this.tagLength = tagLength;
+        }
+
+        synchronized void add(int line, int col) {
+            if(n == lines.length) {
+                int newLength = n * 2;
+                lines = Arrays.copyOf(lines, newLength);
+                cols = Arrays.copyOf(cols, newLength);
+            }
+            lines[n] = line;
+            cols[n] = col;
+            n++;
+        }
+
+        /** @return index of the line's ref, -1 if not found */
+        private synchronized int find(int line) {
+            // lines are normally printed in order
+            int idx = Arrays.binarySearch(lines, 0, n, line);
+            if(idx >= 0) {
+                while(idx > 0 && lines[idx - 1] == line)
+                    idx--;
+                return idx;
+            }
+            for(int i = 0; i < n; i++) {
+                if(lines[i] == line)
+                    return i;
+            }
+            return -1;
+        }
+
+        private int parseLine(String text) {
+            int line = 0;
+            int i = tagLength;
+            for(; i < text.length(); i++) {
+                char c = text.charAt(i);
+                if(c < '0' || c > '9')
+                    break;
+                line = line * 10 + c - '0';
+            }
+            return i > tagLength ? line : -1;
         }
 
         @Override
         public void outputLineAction(OutputEvent outputEvent) {
+            int line = parseLine(outputEvent.getLine());
+            int idx = line < 0 ? -1 : find(line);
+            if(idx < 0)
+                return;
+            int col;
+            synchronized(this) {
+                col = cols[idx];
+            }
+            LineCookie lc = dobj.getLookup().lookup(LineCookie.class);
+            if(lc == null)
+                return;
+            Line nbLine;
+            try {
+                nbLine = lc.getLineSet().getCurrent(line - 1);
+            } catch(IndexOutOfBoundsException ex) {
+                return;
+            }
             nbLine.show(Line.ShowOpenType.OPEN,
                         Line.ShowVisibilityType.FOCUS,
                         col);
-            // highlights takes care of this
-            // This is flakey for the first time click on hyperlink
-            //final JTextComponent tc = EditorRegistry.focusedComponent();
-            //if(tc != null) {
-            //    EventQueue.invokeLater(new Runnable() {
-            //        public void run() {
-            //            int off = tc.getCaretPosition();
-            //            tc.setCaretPosition(off + len);
-            //            tc.moveCaretPosition(off);
-            //        }
-            //    });
-            //}
         }
 
         @Override
@@ -21,11 +21,16 @@
 package org.netbeans.modules.jvi.impl;
 
 import java.awt.Color;
+import java.awt.EventQueue;
 import java.awt.Font;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import javax.swing.JEditorPane;
+import javax.swing.JLabel;
 import javax.swing.event.ChangeEvent;
 import javax.swing.event.ChangeListener;
 
@@ -93,6 +98,11 @@ public final class NbStatusDisplay implements ViStatusDisplay
         }
     }
 
+    /** @return the mode last displayed, "" for command mode */
+    String getMode() {
+        return lastMode;
+    }
+
     private String modeString() {
         return mode + (G.Recording()  ? "recording " : "");
     }
@@ -264,18 +274,113 @@ public final class NbStatusDisplay implements ViStatusDisplay
         setText(cellName, text, null);
     }
 
+    /**
+     * Record what the cell should show; the status bar is updated once
+     * the current event is done, see {@link #flush}. Several updates
+     * for a keystroke end up as one push of the final text.
+     * May be called off the EDT, pending is the handoff.
+     */
     private void setText(String cellName, String text, Coloring coloring) {
-        LOG.log(Level.FINE, "setText: {0} ''{1}'' {2}",
-                new Object[]{cellName, text,
-                            coloring != null ? coloring.getForeColor() : null});
         scrollCount = 0;
+        boolean post;
+        synchronized(pending) {
+            pending.put(cellName, new CellText(text, coloring));
+            post = !flushPosted;
+            flushPosted = true;
+        }
+        if(post)
+            EventQueue.invokeLater(flusher);
+    }
+
+    /** what a status bar cell shows */
+    private static final class CellText
+    {
+        final String text;
+        final Coloring coloring;
+
+        CellText(String text, Coloring coloring)
+        {
+            this.text = text;
+            this.coloring = coloring;
+        }
+
+        boolean same(CellText other)
+        {
+            return other != null
+                    && text.equals(other.text) && coloring == other.coloring;
+        }
+    }
+
+    /** not yet pushed to the status bar, by cell name; it's the lock
+     * for itself and flushPosted */
+    private final Map<String, CellText> pending
+            = new LinkedHashMap<String, CellText>(4);
+    /** last pushed to pushedStatusBar, by cell name; only on the EDT */
+    private final Map<String, CellText> pushed
+            = new HashMap<String, CellText>(4);
+    private StatusBar pushedStatusBar;
+    private boolean flushPosted;
+
+    private final Runnable flusher = new Runnable() {
+        @Override
+        public void run()
+        {
+            flush();
+        }
+    };
+
+    private void flush() {
+        Map<String, CellText> cells;
+        synchronized(pending) {
+            flushPosted = false;
+            if(pending.isEmpty())
+                return;
+            cells = new LinkedHashMap<String, CellText>(pending);
+            pending.clear();
+        }
 	StatusBar sb = getStatusBar();
+        if(sb != pushedStatusBar) {
+            pushed.clear();
+            pushedStatusBar = sb;
+        }
+        for(Map.Entry<String, CellText> e : cells.entrySet()) {
+            String cellName = e.getKey();
+            CellText ct = e.getValue();
+            // the alternate display goes away by itself, always push it
+            if(ct.same(pushed.get(cellName)) && !usingAlternate(sb, cellName)
+                    && showing(sb, cellName, ct.text))
+                continue;
+            push(sb, cellName, ct.text, ct.coloring);
+            pushed.put(cellName, ct);
+        }
+    }
+
+    /**
+     * NetBeans also writes to the cells, CELL_MAIN in particular;
+     * what was last pushed is only there if the cell still shows it.
+     */
+    private static boolean showing(StatusBar sb, String cellName,
+                                   String text) {
+        if(sb == null)
+            return true;
+        JLabel cell = sb.getCellByName(cellName);
+        return cell != null && text.equals(cell.getText());
+    }
+
+    private static boolean usingAlternate(StatusBar sb, String cellName) {
+        // Only use alternate for CELL_MAIN and when sb not visible
+        return sb != null && StatusBar.CELL_MAIN.equals(cellName)
+                && !sb.isVisible();
+    }
+
+    private void push(StatusBar sb, String cellName,
+                      String text, Coloring coloring) {
+        if(LOG.isLoggable(Level.FINE))
+            LOG.log(Level.FINE, "setText: {0} ''{1}'' {2}",
+                    new Object[]{cellName, text,
+                                coloring != null ? coloring.getForeColor() : null});
         if(sb != null) {
-            // Only use alternate for CELL_MAIN and when sb not visible
-            boolean useAlternate = false;
-            if(StatusBar.CELL_MAIN.equals(cellName)
-                    && !sb.isVisible())
-                useAlternate = true;
+            boolean useAlternate = usingAlternate(sb, cellName);
 
             boolean allBlank = true;
             for(int i = 0; i < text.length(); i++) {
@@ -34,9 +34,9 @@ import org.netbeans.editor.BaseCaret;
 import org.netbeans.editor.BaseKit;
 import org.netbeans.modules.editor.NbEditorKit;
 import org.netbeans.modules.editor.NbEditorUtilities;
+import org.netbeans.modules.jvi.EditorPaneIndex;
 import org.netbeans.modules.jvi.FsAct;
 import org.netbeans.modules.jvi.Module;
-import org.netbeans.modules.jvi.reflect.NbWindows;
 import org.netbeans.modules.jvi.spi.WindowsProvider;
 import org.netbeans.modules.jvi.spi.WindowsProvider.EditorHandle;
 import org.netbeans.modules.jvi.spi.WindowsProvider.EditorSizerArgs;
@@ -384,9 +384,16 @@ public class NbTextView extends SwingTextView
     
     /**
      * Jump to the definition of the identifier unde the cursor.
+     * If there is a tags file with the identifier use it,
+     * otherwise it's up to NetBeans.
      */
     @Override
     public void jumpDefinition(String ident) {
+        if(!CTags.findMatches(this, ident).isEmpty()) {
+            ViManager.getFactory().startTagPush(this, ident);
+            CTags.jumpMatch();
+            return;
+        }
         ops.xact(NbEditorKit.gotoDeclarationAction);
         ViManager.getFactory().startTagPush(this, ident);
     }
@@ -1001,7 +1008,7 @@ public class NbTextView extends SwingTextView
 
     public static Component findModePanel(Component c)
     {
-        return NbWindows.findModePanel(c);
+        return EditorPaneIndex.findModePanel(c);
     }
 
     private static final class EH implements EditorHandle
@@ -1413,7 +1420,8 @@ public class NbTextView extends SwingTextView
         //
         // Is there a way to get active highlight container
         //
-        private final OffsetsBag bag;
+        /** created when there is something to show, see bag() */
+        private OffsetsBag bag;
         protected final JEditorPane ep;
         protected final Document document;
         protected final String name;
@@ -1428,14 +1436,28 @@ public class NbTextView extends SwingTextView
             this.ep = ep;
             this.document = ep.getDocument();
             mygen = ++gen;
+        }
 
-            // Let the bag update first... (it's doc listener)
-            this.bag = new OffsetsBag(document);
-            this.bag.addHighlightsChangeListener(this);
-            
-            // ...and the internal listener second
-            this.document.addDocumentListener(
-                    WeakListeners.document(this, this.document));
+        /**
+         * The bag and the document listener are set up on first use;
+         * the layers are created for every editor that is painted,
+         * most never have jVi highlights.
+         */
+        private synchronized OffsetsBag bag() {
+            if(bag == null) {
+                // Let the bag update first... (it's doc listener)
+                bag = new OffsetsBag(document);
+                bag.addHighlightsChangeListener(this);
+
+                // ...and the internal listener second
+                document.addDocumentListener(
+                        WeakListeners.document(this, document));
+            }
+            return bag;
+        }
+
+        private synchronized boolean hasBag() {
+            return bag != null;
         }
 
         protected String displayName() {
@@ -1449,13 +1471,16 @@ public class NbTextView extends SwingTextView
         }
 
         protected void discard() {
-            bag.removeHighlightsChangeListener(this);
-            bag.discard();
+            if(hasBag()) {
+                bag.removeHighlightsChangeListener(this);
+                bag.discard();
+            }
             isDiscarded = true;
         }
 
         protected void goIdle() {
-            bag.clear();
+            if(hasBag())
+                bag.clear();
         }
 
         protected abstract int[] getBlocks(
@@ -1484,9 +1509,12 @@ public class NbTextView extends SwingTextView
             if(dbgHL(this) && dbgHL().getBoolean()) {
                 dbgHL().println(displayName() + " getHighlights: "
                                    + startOffset + "," + endOffset);
-                dumpHLSeq(displayName(),
-                          bag.getHighlights(startOffset, endOffset));
+                dumpHLSeq(displayName(), !hasBag()
+                          ? HighlightsSequence.EMPTY
+                          : bag.getHighlights(startOffset, endOffset));
             }
+            if(!hasBag())
+                return HighlightsSequence.EMPTY;
             return bag.getHighlights(startOffset, endOffset);
         }
 
@@ -1551,9 +1579,13 @@ public class NbTextView extends SwingTextView
                 public void run() {
                     if(isDiscarded)
                         return;
+                    NbTextView tv = getTv();
+                    // nothing to clear or show
+                    if(!hasBag() && (tv == null || !isEnabled()))
+                        return;
+                    OffsetsBag theBag = bag();
                     OffsetsBag newBag = new OffsetsBag(document);
                     
-                    NbTextView tv = getTv();
                     if (isEnabled() && tv != null) {
 
                         int [] blocks = getBlocks(tv, startOffset, endOffset);
@@ -1569,14 +1601,14 @@ public class NbTextView extends SwingTextView
                     }
                     
                     if(replaceAll) {
-                        bag.setHighlights(newBag);
+                        theBag.setHighlights(newBag);
                     } else {
                         //  Issue 114642
                         int bug = 0; //-1;
                         if(startOffset == endOffset)
                             bug = 0;
-                        bag.removeHighlights(startOffset, endOffset+bug, false);
-                        bag.addAllHighlights(newBag.getHighlights(startOffset,
+                        theBag.removeHighlights(startOffset, endOffset+bug, false);
+                        theBag.addAllHighlights(newBag.getHighlights(startOffset,
                                                                   endOffset));
                     }
                     newBag.discard();
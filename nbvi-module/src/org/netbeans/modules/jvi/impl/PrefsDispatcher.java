@@ -0,0 +1,176 @@
+/*
+ * The contents of this file are subject to the Mozilla Public
+ * License Version 1.1 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of
+ * the License at http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS
+ * IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * rights and limitations under the License.
+ *
+ * The Original Code is jvi - vi editor clone.
+ *
+ * The Initial Developer of the Original Code is Ernie Rael.
+ * Portions created by Ernie Rael are
+ * Copyright (C) 2011 Ernie Rael.  All Rights Reserved.
+ *
+ * Contributor(s): Ernie Rael <err@raelity.com>
+ */
+package org.netbeans.modules.jvi.impl;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.prefs.PreferenceChangeEvent;
+import java.util.prefs.PreferenceChangeListener;
+import java.util.prefs.Preferences;
+
+import com.raelity.jvi.manager.ViManager;
+
+/**
+ * A single listener on the jVi preferences that passes each change
+ * only to those that subscribed to the change's key. With many buffers
+ * open, a change doesn't walk a listener per buffer.
+ * <p/>
+ * Subscribers are weakly held, the subscriber must keep a reference
+ * to its listener.
+ *
+ * @author Ernie Rael <err at raelity.com>
+ */
+public final class PrefsDispatcher
+{
+    private PrefsDispatcher() { }
+
+    private static final Map<String, List<WeakReference<PreferenceChangeListener>>>
+            subscribers
+            = new HashMap<String, List<WeakReference<PreferenceChangeListener>>>();
+
+    private static boolean listening;
+
+    private static final PreferenceChangeListener dispatcher
+            = new PreferenceChangeListener() {
+        @Override
+        public void preferenceChange(PreferenceChangeEvent evt)
+        {
+            dispatch(evt);
+        }
+    };
+
+    static void subscribe(String key, PreferenceChangeListener pcl)
+    {
+        synchronized(subscribers) {
+            if(!listening) {
+                Preferences prefs = ViManager.getFactory().getPreferences();
+                prefs.addPreferenceChangeListener(dispatcher);
+                listening = true;
+            }
+            List<WeakReference<PreferenceChangeListener>> l
+                    = subscribers.get(key);
+            if(l == null) {
+                l = new ArrayList<WeakReference<PreferenceChangeListener>>();
+                subscribers.put(key, l);
+            }
+            l.add(new WeakReference<PreferenceChangeListener>(pcl));
+        }
+    }
+
+    static void unsubscribe(String key, PreferenceChangeListener pcl)
+    {
+        synchronized(subscribers) {
+            List<WeakReference<PreferenceChangeListener>> l
+                    = subscribers.get(key);
+            if(l == null)
+                return;
+            for(Iterator<WeakReference<PreferenceChangeListener>> it
+                    = l.iterator(); it.hasNext();) {
+                PreferenceChangeListener pcl01 = it.next().get();
+                if(pcl01 == null || pcl01 == pcl)
+                    it.remove();
+            }
+            if(l.isEmpty())
+                subscribers.remove(key);
+        }
+    }
+
+    private static void dispatch(PreferenceChangeEvent evt)
+    {
+        List<PreferenceChangeListener> targets;
+        synchronized(subscribers) {
+            List<WeakReference<PreferenceChangeListener>> l
+                    = subscribers.get(evt.getKey());
+            if(l == null)
+                return;
+            targets = new ArrayList<PreferenceChangeListener>(l.size());
+            for(Iterator<WeakReference<PreferenceChangeListener>> it
+                    = l.iterator(); it.hasNext();) {
+                PreferenceChangeListener pcl = it.next().get();
+                if(pcl == null)
+                    it.remove();
+                else
+                    targets.add(pcl);
+            }
+            if(l.isEmpty())
+                subscribers.remove(evt.getKey());
+        }
+        // outside the lock, a subscriber may (un)subscribe
+        for(PreferenceChangeListener pcl : targets) {
+            pcl.preferenceChange(evt);
+        }
+    }
+
+    /**
+     * Time the dispatch of changes with nBuffers subscribed, the way
+     * each buffer subscribes. Report the time for a change of a key
+     * nobody subscribed to and of the subscribed key.
+     */
+    public static void bench(int nBuffers, int nChanges)
+    {
+        final String key = "jvi-bench-subscribed";
+        final int[] count = new int[1];
+        List<PreferenceChangeListener> keep
+                = new ArrayList<PreferenceChangeListener>(nBuffers);
+        for(int i = 0; i < nBuffers; i++) {
+            PreferenceChangeListener pcl = new PreferenceChangeListener() {
+                @Override
+                public void preferenceChange(PreferenceChangeEvent evt)
+                {
+                    count[0]++;
+                }
+            };
+            keep.add(pcl);
+            subscribe(key, pcl);
+        }
+        Preferences prefs = ViManager.getFactory().getPreferences();
+        try {
+            PreferenceChangeEvent other
+                    = new PreferenceChangeEvent(prefs, "jvi-bench-other", "x");
+            PreferenceChangeEvent subscribed
+                    = new PreferenceChangeEvent(prefs, key, "x");
+            long t0 = System.nanoTime();
+            for(int i = 0; i < nChanges; i++) {
+                dispatch(other);
+            }
+            long t1 = System.nanoTime();
+            for(int i = 0; i < nChanges; i++) {
+                dispatch(subscribed);
+            }
+            long t2 = System.nanoTime();
+            ViManager.println(String.format(
+                    "PrefsDispatcher: %d buffers, %d changes", nBuffers, nChanges));
+            ViManager.println(String.format(
+                    "    other key:      %8.3f us/change",
+                    (t1 - t0) / 1000.0 / nChanges));
+            ViManager.println(String.format(
+                    "    subscribed key: %8.3f us/change (%d delivered)",
+                    (t2 - t1) / 1000.0 / nChanges, count[0]));
+        } finally {
+            for(PreferenceChangeListener pcl : keep) {
+                unsubscribe(key, pcl);
+            }
+        }
+    }
+}
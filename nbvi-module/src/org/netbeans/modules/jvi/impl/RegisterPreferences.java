@@ -0,0 +1,503 @@
+/*
+ * The contents of this file are subject to the Mozilla Public
+ * License Version 1.1 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of
+ * the License at http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS
+ * IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * rights and limitations under the License.
+ *
+ * The Original Code is jvi - vi editor clone.
+ *
+ * The Initial Developer of the Original Code is Ernie Rael.
+ * Portions created by Ernie Rael are
+ * Copyright (C) 2011 Ernie Rael.  All Rights Reserved.
+ *
+ * Contributor(s): Ernie Rael <err@raelity.com>
+ */
+package org.netbeans.modules.jvi.impl;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.prefs.AbstractPreferences;
+import java.util.prefs.BackingStoreException;
+import java.util.prefs.Preferences;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.openide.filesystems.FileObject;
+import org.openide.filesystems.FileUtil;
+import org.openide.util.RequestProcessor;
+
+/**
+ * The "registers" preferences node and its children.
+ * A big yank makes a big properties file, slow to load at startup and
+ * slow to write. Here each node is kept in its own gzip'd chunk file
+ * in the config folder {@value #FOLDER}; a small index lists the nodes.
+ * A chunk is read the first time its node is used,
+ * changes are written in the background.
+ * <p/>
+ * Registers found in the old location,
+ * config/Preferences/org/netbeans/modules/jvi/registers,
+ * are migrated; this also picks up an import of old style registers.
+ * <p/>
+ * public for Module's FileHack.
+ *
+ * @author Ernie Rael <err at raelity.com>
+ */
+public final class RegisterPreferences extends AbstractPreferences
+{
+    private static final Logger LOG
+            = Logger.getLogger(RegisterPreferences.class.getName());
+
+    /** name of this node in the module's preferences */
+    public static final String NODE = "registers";
+    /** where the chunk files live, relative to config root */
+    public static final String FOLDER = "jVi/registers";
+    private static final String INDEX = "index.properties";
+    private static final String CHUNK_EXT = ".gz";
+    private static final int WRITE_DELAY = 1000; // millis
+
+    private static final RequestProcessor RP
+            = new RequestProcessor(RegisterPreferences.class.getName());
+
+    private static Store store;
+
+    /** path relative to the registers node, "" for the registers node */
+    private final String relPath;
+    private final String absPath;
+
+    /**
+     * Create the registers node.
+     * @param parent the module's preferences
+     * @param legacyParent where the registers used to be
+     */
+    RegisterPreferences(AbstractPreferences parent, Preferences legacyParent)
+    {
+        super(parent, NODE);
+        relPath = "";
+        absPath = parent.absolutePath() + "/" + NODE;
+        synchronized(RegisterPreferences.class) {
+            if(store == null)
+                store = new Store(legacyParent);
+        }
+        store.addNode(relPath);
+    }
+
+    private RegisterPreferences(RegisterPreferences parent, String name)
+    {
+        super(parent, name);
+        relPath = childPath(parent.relPath, name);
+        absPath = parent.absPath + "/" + name;
+        store.addNode(relPath);
+    }
+
+    /**
+     * Look in the file, not what is in memory, for the key value
+     * of the registers node. This is for the import check.
+     */
+    public static boolean fileHasKeyValue(String key, String val)
+    {
+        Map<String, String> m = readChunk(fileName(""));
+        return m != null && val.equals(m.get(key));
+    }
+
+    @Override
+    public String absolutePath()
+    {
+        return absPath;
+    }
+
+    @Override
+    protected void putSpi(String key, String value)
+    {
+        store.put(relPath, key, value);
+    }
+
+    @Override
+    protected String getSpi(String key)
+    {
+        return store.get(relPath, key);
+    }
+
+    @Override
+    protected void removeSpi(String key)
+    {
+        store.remove(relPath, key);
+    }
+
+    @Override
+    protected void removeNodeSpi() throws BackingStoreException
+    {
+        store.removeNode(relPath);
+    }
+
+    @Override
+    protected String[] keysSpi() throws BackingStoreException
+    {
+        return store.keys(relPath);
+    }
+
+    @Override
+    protected String[] childrenNamesSpi() throws BackingStoreException
+    {
+        return store.childrenNames(relPath);
+    }
+
+    @Override
+    protected AbstractPreferences childSpi(String name)
+    {
+        return new RegisterPreferences(this, name);
+    }
+
+    @Override
+    protected void syncSpi() throws BackingStoreException
+    {
+        store.sync();
+    }
+
+    @Override
+    protected void flushSpi() throws BackingStoreException
+    {
+        store.flush();
+    }
+
+    private static String childPath(String parentPath, String name)
+    {
+        return parentPath.isEmpty() ? name : parentPath + "/" + name;
+    }
+
+    /**
+     * A file name for the chunk holding the node at relPath.
+     * Anything but an ascii letter or digit is encoded as _xxxx.
+     */
+    private static String fileName(String relPath)
+    {
+        StringBuilder sb = new StringBuilder("r");
+        for(int i = 0; i < relPath.length(); i++) {
+            char c = relPath.charAt(i);
+            if(c < 0x80 && Character.isLetterOrDigit(c))
+                sb.append(c);
+            else
+                sb.append(String.format("_%04x", (int)c));
+        }
+        return sb.append(CHUNK_EXT).toString();
+    }
+
+    /** @return null if the chunk file does not exist */
+    private static Map<String, String> readChunk(String fname)
+    {
+        FileObject fo = FileUtil.getConfigFile(FOLDER + "/" + fname);
+        if(fo == null)
+            return null;
+        Properties p = new Properties();
+        try {
+            InputStream in = new GZIPInputStream(fo.getInputStream());
+            try {
+                p.load(in);
+            } finally {
+                in.close();
+            }
+        } catch(IOException ex) {
+            LOG.log(Level.SEVERE, null, ex);
+        }
+        Map<String, String> m = new HashMap<String, String>();
+        for(String key : p.stringPropertyNames()) {
+            m.put(key, p.getProperty(key));
+        }
+        return m;
+    }
+
+    private static void writeChunk(FileObject folder, String fname,
+                                   Map<String, String> m)
+            throws IOException
+    {
+        Properties p = new Properties();
+        p.putAll(m);
+        FileObject fo = folder.getFileObject(fname);
+        if(fo == null)
+            fo = folder.createData(fname);
+        GZIPOutputStream out = new GZIPOutputStream(fo.getOutputStream());
+        try {
+            p.store(out, null);
+            out.finish();
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * The data for the registers node and its descendants.
+     * Synchronize on the store, not the node; the writer task
+     * does not know about the nodes.
+     */
+    private static final class Store
+    {
+        /** relPath to chunk file name */
+        private final Map<String, String> index
+                = new HashMap<String, String>();
+        /** chunks that have been read or created */
+        private final Map<String, Map<String, String>> chunks
+                = new HashMap<String, Map<String, String>>();
+        private final Set<String> dirty = new HashSet<String>();
+        private boolean indexDirty;
+        /** remove after the migrated registers are written */
+        private Preferences legacy;
+
+        private final Object writeLock = new Object();
+        private final RequestProcessor.Task writeTask;
+
+        Store(Preferences legacyParent)
+        {
+            writeTask = RP.create(new Runnable() {
+                @Override
+                public void run()
+                {
+                    write();
+                }
+            });
+            readIndex();
+            migrate(legacyParent);
+        }
+
+        private synchronized void readIndex()
+        {
+            FileObject fo = FileUtil.getConfigFile(FOLDER + "/" + INDEX);
+            if(fo == null)
+                return;
+            Properties p = new Properties();
+            try {
+                InputStream in = fo.getInputStream();
+                try {
+                    p.load(in);
+                } finally {
+                    in.close();
+                }
+            } catch(IOException ex) {
+                LOG.log(Level.SEVERE, null, ex);
+            }
+            for(String path : p.stringPropertyNames()) {
+                index.put(path, p.getProperty(path));
+            }
+        }
+
+        /** Registers in the old location replace whatever is here. */
+        private synchronized void migrate(Preferences legacyParent)
+        {
+            try {
+                if(!legacyParent.nodeExists(NODE))
+                    return;
+                Preferences old = legacyParent.node(NODE);
+                LOG.log(Level.INFO, "migrating {0}", old.absolutePath());
+                for(String path : new ArrayList<String>(index.keySet())) {
+                    removeNode(path);
+                }
+                copyLegacy(old, "");
+                legacy = old;
+                writeTask.schedule(WRITE_DELAY);
+            } catch(BackingStoreException ex) {
+                LOG.log(Level.SEVERE, null, ex);
+            }
+        }
+
+        private void copyLegacy(Preferences old, String path)
+                throws BackingStoreException
+        {
+            Map<String, String> m = new HashMap<String, String>();
+            for(String key : old.keys()) {
+                String val = old.get(key, null);
+                if(val != null)
+                    m.put(key, val);
+            }
+            addNode(path);
+            chunks.put(path, m);
+            dirty.add(path);
+            for(String child : old.childrenNames()) {
+                copyLegacy(old.node(child), childPath(path, child));
+            }
+        }
+
+        synchronized void addNode(String path)
+        {
+            if(!index.containsKey(path)) {
+                index.put(path, fileName(path));
+                chunks.put(path, new HashMap<String, String>());
+                dirty.add(path);
+                indexDirty = true;
+                writeTask.schedule(WRITE_DELAY);
+            }
+        }
+
+        synchronized void removeNode(String path)
+        {
+            if(index.remove(path) != null) {
+                chunks.remove(path);
+                dirty.add(path);
+                indexDirty = true;
+                writeTask.schedule(WRITE_DELAY);
+            }
+        }
+
+        /** The lazy load happens here. */
+        private Map<String, String> chunk(String path)
+        {
+            Map<String, String> m = chunks.get(path);
+            if(m == null) {
+                String fname = index.get(path);
+                if(fname != null)
+                    m = readChunk(fname);
+                if(m == null)
+                    m = new HashMap<String, String>();
+                chunks.put(path, m);
+            }
+            return m;
+        }
+
+        synchronized String get(String path, String key)
+        {
+            return chunk(path).get(key);
+        }
+
+        synchronized void put(String path, String key, String value)
+        {
+            if(!value.equals(chunk(path).put(key, value))) {
+                dirty.add(path);
+                writeTask.schedule(WRITE_DELAY);
+            }
+        }
+
+        synchronized void remove(String path, String key)
+        {
+            if(chunk(path).remove(key) != null) {
+                dirty.add(path);
+                writeTask.schedule(WRITE_DELAY);
+            }
+        }
+
+        synchronized String[] keys(String path)
+        {
+            Set<String> keys = chunk(path).keySet();
+            return keys.toArray(new String[keys.size()]);
+        }
+
+        synchronized String[] childrenNames(String path)
+        {
+            String prefix = path.isEmpty() ? "" : path + "/";
+            List<String> l = new ArrayList<String>();
+            for(String p : index.keySet()) {
+                if(!p.isEmpty() && p.startsWith(prefix)
+                        && p.indexOf('/', prefix.length()) < 0)
+                    l.add(p.substring(prefix.length()));
+            }
+            return l.toArray(new String[l.size()]);
+        }
+
+        /**
+         * Pick up the files, for example after an options import.
+         * Pending changes win, sync happens if nothing is pending.
+         */
+        synchronized void sync()
+        {
+            if(!dirty.isEmpty() || indexDirty)
+                return;
+            index.clear();
+            chunks.clear();
+            readIndex();
+        }
+
+        void flush()
+        {
+            writeTask.cancel();
+            write();
+        }
+
+        private void write()
+        {
+            synchronized(writeLock) {
+                Map<String, Map<String, String>> toWrite
+                        = new HashMap<String, Map<String, String>>();
+                Set<String> toDelete = new HashSet<String>();
+                Properties idx = null;
+                Preferences oldLegacy;
+                synchronized(this) {
+                    for(String path : dirty) {
+                        if(index.containsKey(path))
+                            toWrite.put(path, new HashMap<String, String>(
+                                    chunk(path)));
+                        else
+                            toDelete.add(path);
+                    }
+                    dirty.clear();
+                    if(indexDirty) {
+                        idx = new Properties();
+                        idx.putAll(index);
+                        indexDirty = false;
+                    }
+                    oldLegacy = legacy;
+                    legacy = null;
+                }
+                if(toWrite.isEmpty() && toDelete.isEmpty() && idx == null)
+                    return;
+
+                try {
+                    FileObject folder = FileUtil.createFolder(
+                            FileUtil.getConfigRoot(), FOLDER);
+                    for(Map.Entry<String, Map<String, String>> e
+                            : toWrite.entrySet()) {
+                        writeChunk(folder, fileName(e.getKey()), e.getValue());
+                    }
+                    for(String path : toDelete) {
+                        FileObject fo = folder.getFileObject(fileName(path));
+                        if(fo != null)
+                            fo.delete();
+                    }
+                    if(idx != null) {
+                        FileObject fo = folder.getFileObject(INDEX);
+                        if(fo == null)
+                            fo = folder.createData(INDEX);
+                        OutputStream out = fo.getOutputStream();
+                        try {
+                            idx.store(out, null);
+                        } finally {
+                            out.close();
+                        }
+                    }
+                } catch(IOException ex) {
+                    LOG.log(Level.SEVERE, null, ex);
+                    // try again later
+                    synchronized(this) {
+                        dirty.addAll(toWrite.keySet());
+                        dirty.addAll(toDelete);
+                        if(idx != null)
+                            indexDirty = true;
+                        if(legacy == null)
+                            legacy = oldLegacy;
+                    }
+                    return;
+                }
+
+                if(oldLegacy != null) {
+                    try {
+                        Preferences p = oldLegacy.parent();
+                        oldLegacy.removeNode();
+                        p.flush();
+                    } catch(BackingStoreException ex) {
+                        LOG.log(Level.SEVERE, null, ex);
+                    }
+                }
+            }
+        }
+    }
+}